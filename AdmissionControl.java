@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// 全服务器共用的准入控制：连接数上限 + 内存预算，两种执行模型共用
+// 预算分两部分记：积压的应答（queued）和正在读的分块正文（reading），都是池化的堆外缓冲；每个连接自己还有 maxConnectionMemory 的上限
+// 新分块放不进剩余预算（两部分合计）时落盘，不再分配内存
+// 高低水位只看积压的应答：应答不管读不读都会发出去，用量一定会降下来；正文要等客户端把这一帧发完才归还，
+// 慢客户端可以一直占着，拿它来停读、暂停accept会把整个服务器卡死
+// 超过高水位（预算的90%）：事件循环逐个停掉积压最多的连接的读，accept线程暂停接受新连接（留在内核的积压队列里）
+// 到了上限：事件循环停掉所有连接的读；都只在帧边界上停，读到一半的帧先读完
+// 积压降到低水位（70%）以下，停掉的读和accept都恢复
+public final class AdmissionControl {
+    private final long limit;
+    private final long high;
+    private final long low;
+    private final long maxConnections;
+    private final AtomicLong queued;
+    private final AtomicLong reading;
+    private final ServerMetrics metrics;
+
+    public AdmissionControl(ServerConfig config, ServerMetrics metrics) {
+        this.limit = config.memoryBudget > 0 ? config.memoryBudget : Long.MAX_VALUE;
+        this.high = limit / 10 * 9;
+        this.low = limit / 10 * 7;
+        this.maxConnections = config.maxConnections > 0 ? config.maxConnections : Long.MAX_VALUE;
+        this.queued = metrics.memoryInUse;
+        this.reading = metrics.memoryReading;
+        this.metrics = metrics;
+    }
+
+    // 积压的应答占用（正数）或归还（负数）预算
+    void charge(long bytes) {
+        queued.addAndGet(bytes);
+    }
+
+    // 正在读的正文占用或归还预算
+    void reserve(long bytes) {
+        reading.addAndGet(bytes);
+    }
+
+    // 还能分配多少，传给 FrameDecoder，放不下的分块落盘
+    long available() {
+        return Math.max(0, limit - queued.get() - reading.get());
+    }
+
+    boolean aboveHigh() {
+        return queued.get() > high;
+    }
+
+    boolean exhausted() {
+        return queued.get() >= limit;
+    }
+
+    boolean belowLow() {
+        return queued.get() < low;
+    }
+
+    // 现在能不能再接受一个连接；activeConnections 在 accept 时就加上，不等注册
+    boolean admitsConnection() {
+        return metrics.activeConnections.sum() < maxConnections && !aboveHigh();
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// 批量帧的应答：正文格式和请求相同，每一块原地反转，长度前缀不动，头部写进预留位置，整帧一次写出
+// 块都很小（不超过 MAX_BATCH），不查反转结果缓存，也不压缩
+class BatchReply extends BufferedReply {
+    final long segmentBytes;                // 不含长度前缀
+    private final int headerSize;
+    private final int version;
+    private final int mode;
+    private final int seq;
+    private final int codec;
+    private final int count;
+
+    BatchReply(ByteBuffer buffer, int headerSize, int version, int mode, int seq, int codec) throws IOException {
+        super(buffer);
+        this.headerSize = headerSize;
+        this.version = version;
+        this.mode = mode;
+        this.seq = seq;
+        this.codec = codec;
+        int count = 0;
+        long bytes = 0;
+        for (int position = headerSize; position < buffer.limit(); count++) {
+            if (buffer.limit() - position < Protocol.BATCH_ENTRY_HEADER) throw new IOException("Truncated batch entry at " + position);
+            int length = buffer.getInt(position);
+            position += Protocol.BATCH_ENTRY_HEADER;
+            if (length < 0 || length > buffer.limit() - position) throw new IOException("Invalid batch entry size: " + length);
+            position += length;
+            bytes += length;
+        }
+        if (count == 0) throw new IOException("Empty batch");
+        this.count = count;
+        this.segmentBytes = bytes;
+    }
+
+    void reverse() {
+        for (int position = headerSize; position < buffer.limit(); ) {
+            int length = buffer.getInt(position);
+            position += Protocol.BATCH_ENTRY_HEADER;
+            SegmentReverser.reverse(buffer, position, position + length, mode);
+            position += length;
+        }
+        int length = buffer.limit() - headerSize;
+        buffer.position(0);
+        Protocol.putHeader(buffer, version, codec, Protocol.BATCH_REPLY, length, seq, length);
+        buffer.position(0);
+    }
+
+    @Override
+    long payload() {
+        return segmentBytes;
+    }
+
+    @Override
+    int segments() {
+        return count;
+    }
+}
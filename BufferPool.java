@@ -0,0 +1,89 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// 堆外缓冲池：按2的幂分级（4 KiB ~ 16 MiB），acquire取、release还，服务端和客户端的读写路径共用
+// 超过最大级别的请求直接分配、不回收；池中缓存的总字节数有上限，超出的缓冲交给GC
+public class BufferPool {
+    public static final int chunkSize = Integer.getInteger("reverse.chunkSize", 64 * 1024);           // 读写文件/套接字时的分块大小，可用 -Dreverse.chunkSize 调整
+    private static final int MIN_SHIFT = 12;                                                        // 最小级别 4 KiB
+    private static final int MAX_SHIFT = 24;                                                        // 最大级别 16 MiB
+    private static final BufferPool shared = new BufferPool(Long.getLong("reverse.poolBytes", 256L << 20));
+
+    private final List<Queue<ByteBuffer>> classes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        classes = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            classes.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    // 返回的缓冲 position = 0, limit = size，容量可能更大
+    public ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        if (index < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);                 // 太大，不进池
+        }
+        ByteBuffer buffer = classes.get(index).poll();
+        if (buffer == null) {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        } else {
+            hits.increment();
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        if (index < 0 || capacity != 1 << (index + MIN_SHIFT)) return; // 不是池里分出去的尺寸
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        classes.get(index).offer(buffer);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public String stats() {
+        return "BufferPool[hits=" + hits() + ", misses=" + misses() + ", pooledBytes=" + pooledBytes() + "]";
+    }
+
+    // 能装下size的最小级别下标，超过最大级别返回-1
+    private static int classIndex(int size) {
+        if (size > 1 << MAX_SHIFT) return -1;
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// 内存里的应答：头部+正文在同一块缓冲里（池化缓冲或握手用的小堆缓冲）
+class BufferedReply extends Outbound {
+    ByteBuffer buffer;
+
+    BufferedReply(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    boolean writeTo(SocketChannel client) throws IOException {
+        client.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    long memory() {
+        return buffer.capacity();
+    }
+
+    // 握手应答没有分块
+    @Override
+    long payload() {
+        return 0;
+    }
+
+    @Override
+    void release() {
+        BufferPool.shared().release(buffer);
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 分块压缩：握手时客户端用 OPT_CODECS 报上支持的算法（位掩码），服务器用 OPT_CODEC 选定一个
+// 选定之后v2数据帧头部多4字节 rawLength（原文长度），length 比 rawLength 小的帧正文是压缩过的，相等就是原文
+// 小于阈值、超过 MAX_BLOCK 或者压缩后没变小的分块照常发原文，由发送方各自决定
+public final class Codec {
+    public static final int NONE = 0;
+    public static final int LZ4 = 1;            // LZ4 块格式，纯Java实现，快
+    public static final int DEFLATE = 2;        // java.util.zip，压缩率高一些，慢
+
+    public static final int MAX_BLOCK = 4 << 20;            // 压缩/解压都在内存里做，超过这个大小的分块不压缩
+    public static final int DEFAULT_THRESHOLD = 512;        // 小于这个大小的分块不值得压缩
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private Codec() {
+    }
+
+    public static int mask(int codec) {
+        return 1 << codec;
+    }
+
+    // 客户端 --compress 参数 -> 要报给服务器的位掩码
+    public static int parseOffer(String name) {
+        switch (name) {
+            case "none": return 0;
+            case "lz4": return mask(LZ4);
+            case "deflate": return mask(DEFLATE);
+            case "auto": return mask(LZ4) | mask(DEFLATE);
+            default: throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+    }
+
+    // 服务器从客户端支持的算法里挑一个，优先LZ4
+    public static int choose(long offered) {
+        if ((offered & mask(LZ4)) != 0) return LZ4;
+        if ((offered & mask(DEFLATE)) != 0) return DEFLATE;
+        return NONE;
+    }
+
+    public static String name(int codec) {
+        switch (codec) {
+            case LZ4: return "lz4";
+            case DEFLATE: return "deflate";
+            default: return "none";
+        }
+    }
+
+    // 压缩 src 的 [position, limit) 写到 dst 的 position 起；dst 放不下（即没有压小到 dst 的大小）返回-1
+    // 成功时两个缓冲的 position 都往后移，返回写出的字节数
+    public static int compress(int codec, ByteBuffer src, ByteBuffer dst) {
+        switch (codec) {
+            case LZ4: return Lz4.compress(src, dst);
+            case DEFLATE: {
+                Deflater deflater = DEFLATER.get();
+                deflater.reset();
+                deflater.setInput(src);
+                deflater.finish();
+                int start = dst.position();
+                while (!deflater.finished()) {
+                    if (!dst.hasRemaining()) {
+                        dst.position(start);
+                        return -1;
+                    }
+                    deflater.deflate(dst);
+                }
+                return dst.position() - start;
+            }
+            default: throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+    }
+
+    // 把 src 的 [position, limit) 解压进 dst，必须正好填满 dst 的 [position, limit)，否则视为数据损坏
+    public static void decompress(int codec, ByteBuffer src, ByteBuffer dst) throws IOException {
+        switch (codec) {
+            case LZ4:
+                Lz4.decompress(src, dst);
+                return;
+            case DEFLATE: {
+                Inflater inflater = INFLATER.get();
+                inflater.reset();
+                inflater.setInput(src);
+                try {
+                    while (!inflater.finished()) {
+                        if (!dst.hasRemaining()) {
+                            // 正文刚好填满时可能还差流结尾没处理，再喂一次确认没有多余的输出
+                            if (inflater.inflate(new byte[1]) != 0 || !inflater.finished()) {
+                                throw new IOException("Corrupt deflate block: longer than expected");
+                            }
+                            break;
+                        }
+                        if (inflater.inflate(dst) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new IOException("Corrupt deflate block: truncated");
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt deflate block: " + e.getMessage());
+                }
+                if (dst.hasRemaining()) throw new IOException("Corrupt deflate block: shorter than expected");
+                return;
+            }
+            default: throw new IOException("Unknown codec: " + codec);
+        }
+    }
+}
+
+// LZ4 块格式（不带帧头）：序列 = token + 字面量长度扩展 + 字面量 + 2字节小端偏移 + 匹配长度扩展
+// 哈希表按线程复用；压缩只找最近一次出现的4字节，和官方 LZ4_compress_fast 的思路一致
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;         // 最后5个字节必须是字面量
+    private static final int MF_LIMIT = 12;             // 最后一个匹配至少在结尾前12字节开始
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_STRENGTH = 6;         // 连续找不到匹配时步长逐渐变大，不可压的数据很快扫过去
+
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private Lz4() {
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int compress(ByteBuffer src, ByteBuffer dst) {
+        int base = src.position();
+        int end = src.limit();
+        int out = dst.position();
+        int outEnd = dst.limit();
+        int anchor = base;
+
+        if (end - base > MF_LIMIT) {
+            int[] table = TABLE.get();
+            Arrays.fill(table, -1);
+            int mfLimit = end - MF_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            int ip = base;
+            int searchCount = 1 << SKIP_STRENGTH;
+            while (ip < mfLimit) {
+                int sequence = src.getInt(ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || src.getInt(ref) != sequence) {
+                    ip += searchCount++ >>> SKIP_STRENGTH;
+                    continue;
+                }
+                searchCount = 1 << SKIP_STRENGTH;
+                while (ip > anchor && ref > base && src.get(ip - 1) == src.get(ref - 1)) {   // 往前扩展
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src.get(ip + matchLength) == src.get(ref + matchLength)) {
+                    matchLength++;
+                }
+                out = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, out, outEnd);
+                if (out < 0) return -1;
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        out = writeSequence(src, anchor, end - anchor, 0, 0, dst, out, outEnd);
+        if (out < 0) return -1;
+        int written = out - dst.position();
+        dst.position(out);
+        src.position(end);
+        return written;
+    }
+
+    // matchLength为0表示最后一个只有字面量的序列；返回新的输出位置，放不下返回-1
+    private static int writeSequence(ByteBuffer src, int literals, int literalLength, int offset, int matchLength,
+                                     ByteBuffer dst, int out, int outEnd) {
+        int extra = matchLength == 0 ? 0 : 2 + (matchLength - MIN_MATCH) / 255 + 1;
+        if (out + 1 + literalLength / 255 + 1 + literalLength + extra > outEnd) return -1;
+        int tokenAt = out++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            out = writeLength(dst, out, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        dst.put(out, src, literals, literalLength);
+        out += literalLength;
+        if (matchLength != 0) {
+            dst.put(out++, (byte) offset);
+            dst.put(out++, (byte) (offset >>> 8));
+            int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+                token |= 15;
+                out = writeLength(dst, out, length - 15);
+            } else {
+                token |= length;
+            }
+        }
+        dst.put(tokenAt, (byte) token);
+        return out;
+    }
+
+    private static int writeLength(ByteBuffer dst, int out, int length) {
+        while (length >= 255) {
+            dst.put(out++, (byte) 255);
+            length -= 255;
+        }
+        dst.put(out++, (byte) length);
+        return out;
+    }
+
+    static void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int ip = src.position();
+        int end = src.limit();
+        int base = dst.position();
+        int op = base;
+        int outEnd = dst.limit();
+        while (true) {
+            if (ip >= end) throw new IOException("Corrupt lz4 block: truncated");
+            int token = src.get(ip++) & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) throw new IOException("Corrupt lz4 block: truncated");
+                    b = src.get(ip++) & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > end - ip || literalLength > outEnd - op) throw new IOException("Corrupt lz4 block: literal overflow");
+            dst.put(op, src, ip, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == end) break;                       // 最后一个序列只有字面量
+
+            if (end - ip < 2) throw new IOException("Corrupt lz4 block: truncated");
+            int offset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op - base) throw new IOException("Corrupt lz4 block: bad offset " + offset);
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) throw new IOException("Corrupt lz4 block: truncated");
+                    b = src.get(ip++) & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > outEnd - op) throw new IOException("Corrupt lz4 block: match overflow");
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                dst.put(op, dst, ref, matchLength);
+            } else {
+                for (int i = 0; i < matchLength; i++) {     // 重叠的匹配（如连续重复的字节）只能逐字节复制
+                    dst.put(op + i, dst.get(ref + i));
+                }
+            }
+            op += matchLength;
+        }
+        if (op != outEnd) throw new IOException("Corrupt lz4 block: expected " + (outEnd - base) + " bytes, got " + (op - base));
+        dst.position(op);
+        src.position(ip);
+    }
+}
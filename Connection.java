@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+// 每个连接的状态：nio 引擎里挂在SelectionKey上，只被所属的事件循环线程访问；threads 引擎里只被这个连接的线程访问（lastActive 除外）
+class Connection {
+    final FrameDecoder decoder;
+    int version = Protocol.VERSION_1;
+    int window = 1;                 // 最多积压多少个没发完的应答，到了就先停止读
+    int mode = SegmentReverser.MODE_UTF8;
+    int codec = Codec.NONE;         // 握手选定的压缩算法
+    int numberOfSegments;           // 还没处理的分块数
+    boolean inputClosed;            // 客户端已经关闭输出
+    final Queue<Outbound> outbound = new ArrayDeque<>();       // 待发送的应答帧
+    long memoryInUse;               // 积压在内存里的应答字节数
+    int pendingWork;                // 交给线程池还没做完的分块数
+    boolean session;                // 握手协商了多文件会话
+    int fileId = -1;                // 会话里正在传的文件，-1表示不在文件中间
+    int fileSegments;               // 这个文件收到的分块数
+    int batchLimit;                 // 协商的批量帧正文上限，0表示不收批量帧
+    boolean paused;                 // 全局内存预算紧张，被事件循环停了读
+    volatile long lastActive = System.nanoTime();  // 最近一次读写的时刻，空闲超时用；每连接线程模型下由回收线程读
+    private final ServerMetrics metrics;
+    private final int compressThreshold;
+    private final ReversalCache cache;
+    private final AdmissionControl admission;
+
+    Connection(ServerConfig config, ServerMetrics metrics, ReversalCache cache, AdmissionControl admission) {
+        decoder = new FrameDecoder(config, admission);
+        this.metrics = metrics;
+        this.compressThreshold = config.compressThreshold;
+        this.cache = cache;
+        this.admission = admission;
+    }
+
+    // 积压的内存同时记在本连接和全局预算上
+    void charge(long bytes) {
+        memoryInUse += bytes;
+        admission.charge(bytes);
+    }
+
+
+    // 握手帧：协商协议版本、窗口和反转方式，返回同意报文
+    ByteBuffer agree(ServerConfig config) throws IOException {
+        ByteBuffer agreement;
+        if (decoder.version >= Protocol.VERSION_2) {
+            ByteBuffer body = decoder.body;
+            body.flip();
+            Map<Integer, Long> options = Protocol.parseOptions(body);
+            BufferPool.shared().release(body);
+            numberOfSegments = options.getOrDefault(Protocol.OPT_SEGMENTS, 0L).intValue();
+            version = Protocol.VERSION_2;
+            window = (int) Math.max(1, Math.min(options.getOrDefault(Protocol.OPT_WINDOW, 1L), config.maxWindow));
+            mode = options.getOrDefault(Protocol.OPT_MODE, (long) SegmentReverser.MODE_UTF8).intValue() == SegmentReverser.MODE_BYTES
+                    ? SegmentReverser.MODE_BYTES : SegmentReverser.MODE_UTF8;
+
+            long offered = options.getOrDefault(Protocol.OPT_CODECS, 0L);
+            codec = config.compress ? Codec.choose(offered) : Codec.NONE;
+
+            Map<Integer, Long> accepted = new LinkedHashMap<>();
+            accepted.put(Protocol.OPT_WINDOW, (long) window);
+            accepted.put(Protocol.OPT_MODE, (long) mode);
+            if (offered != 0) accepted.put(Protocol.OPT_CODEC, (long) codec);   // 没报压缩的老客户端，应答保持原样
+            if (options.getOrDefault(Protocol.OPT_SESSION, 0L) != 0) {
+                session = true;
+                accepted.put(Protocol.OPT_SESSION, 1L);
+            }
+            long batchOffer = options.getOrDefault(Protocol.OPT_BATCH, 0L);
+            if (config.batch && batchOffer > 0) {
+                batchLimit = (int) Math.min(batchOffer, Protocol.MAX_BATCH);
+                accepted.put(Protocol.OPT_BATCH, (long) batchLimit);
+            }
+            Long resumeId = options.get(Protocol.OPT_RESUME);
+            if (resumeId != null) {
+                // 续传的分块和新传的没有区别，服务器不保存状态，只回显会话号并计数
+                accepted.put(Protocol.OPT_RESUME, resumeId);
+                metrics.resumedSessions.increment();
+                if (config.debug) System.out.println("Resumed session " + Long.toHexString(resumeId) + ": " + numberOfSegments + " segments left");
+            }
+            agreement = Protocol.handshake(Protocol.VERSION_2, reverseTcpServer._agreement, accepted);
+        } else {
+            numberOfSegments = decoder.length;    // 后四个字节    就是N
+            agreement = ByteBuffer.allocate(2);   // 发送agree报文
+            agreement.putShort(reverseTcpServer._agreement);
+            agreement.flip();
+        }
+        decoder.reset();
+        decoder.setVersion(version, codec);
+        decoder.batchLimit = batchLimit;
+        return agreement;
+    }
+
+    // 收齐的内存分块：正文前面预留了应答头部的位置，由调用方决定在哪个线程反转
+    SegmentReply takeSegment() throws IOException {
+        ByteBuffer body = decoder.body;
+        body.flip();
+        if (decoder.rawLength > decoder.length) {
+            // 压缩过的分块：解压到新缓冲里，同样预留应答头部的位置
+            ByteBuffer raw = BufferPool.shared().acquire(decoder.headroom + decoder.rawLength);
+            raw.position(decoder.headroom);
+            body.position(decoder.headroom);
+            try {
+                Codec.decompress(codec, body, raw);
+            } catch (IOException e) {
+                BufferPool.shared().release(raw);
+                throw e;
+            } finally {
+                BufferPool.shared().release(body);
+                decoder.body = null;
+            }
+            body = raw.flip();
+            metrics.compressedIn.increment();
+        }
+        SegmentReply reply = new SegmentReply(body, decoder.headroom, version, mode, decoder.seq, codec, compressThreshold, cache);
+        decoder.reset();
+        received(1, reply.segmentSize);
+        return reply;
+    }
+
+    // 收齐的批量帧：先检查每一块的长度，格式不对直接断开；反转同样由调用方决定在哪个线程做
+    BatchReply takeBatch() throws IOException {
+        ByteBuffer body = decoder.body;
+        body.flip();
+        decoder.body = null;
+        BatchReply reply;
+        try {
+            reply = new BatchReply(body, decoder.headroom, version, mode, decoder.seq, codec);
+        } catch (IOException e) {
+            BufferPool.shared().release(body);
+            throw e;
+        }
+        decoder.reset();
+        received(reply.segments(), reply.segmentBytes);
+        metrics.batchesIn.increment();
+        metrics.batchedSegments.add(reply.segments());
+        return reply;
+    }
+
+    // 收齐的落盘分块：应答头部单独一块，正文从临时文件尾部往前流式发回
+    SpooledReply takeSpooled() {
+        ByteBuffer header = ByteBuffer.allocate(Protocol.headerSize(version, codec));
+        Protocol.putHeader(header, version, codec, reverseTcpServer._serverToClient, decoder.length, decoder.seq, decoder.length);
+        header.flip();
+        SpooledReply reply = new SpooledReply(decoder.spool, decoder.length, mode, header);
+        received(1, decoder.length);
+        metrics.spooledSegments.increment();
+        decoder.reset();
+        return reply;
+    }
+
+    // 会话里开始一个文件，seq 是文件号
+    void beginFile() throws IOException {
+        if (!session || fileId >= 0) throw new IOException("Unexpected begin-file frame");
+        fileId = decoder.seq;
+        fileSegments = 0;
+        decoder.reset();
+    }
+
+    // 会话里结束一个文件，返回回执：头部和数据帧相同，length 和 rawLength 都填这个文件收到的分块数
+    ByteBuffer endFile() throws IOException {
+        if (!session || fileId < 0 || decoder.seq != fileId) throw new IOException("Unexpected end-file frame");
+        ByteBuffer receipt = ByteBuffer.allocate(Protocol.headerSize(version, codec));
+        Protocol.putHeader(receipt, version, codec, Protocol.END_FILE, fileSegments, fileId, fileSegments);
+        receipt.flip();
+        fileId = -1;
+        decoder.reset();
+        metrics.filesCompleted.increment();
+        return receipt;
+    }
+
+    private void received(int segments, long bytes) {
+        numberOfSegments -= segments;
+        fileSegments += segments;
+        metrics.segmentsIn.add(segments);
+        metrics.bytesIn.add(bytes);
+    }
+
+    // 握手应答，不计入分块指标
+    void enqueue(Outbound reply) {
+        outbound.add(reply);
+        charge(reply.memory());
+    }
+
+    // 分块应答，receivedAt是分块收齐的时刻，发完时用来算延迟
+    void enqueue(Outbound reply, long receivedAt) {
+        reply.receivedAt = receivedAt;
+        enqueue(reply);
+        metrics.backlogFrames.increment();
+        metrics.backlog(outbound.size());
+    }
+
+    // 一帧应答整个写完
+    void sent(Outbound reply) {
+        charge(-reply.memory());
+        if (reply.receivedAt != 0) {
+            metrics.backlogFrames.decrement();
+            metrics.segmentsOut.add(reply.segments());
+            metrics.bytesOut.add(reply.payload());
+            metrics.segmentLatency.record(System.nanoTime() - reply.receivedAt);
+            if (reply instanceof SegmentReply && ((SegmentReply) reply).compressed) metrics.compressedOut.increment();
+        }
+        reply.release();
+    }
+
+    // 连接关闭时把还占着的池化缓冲、临时文件还回去
+    void release() {
+        decoder.discard();
+        Outbound reply;
+        while ((reply = outbound.poll()) != null) {
+            charge(-reply.memory());
+            if (reply.receivedAt != 0) metrics.backlogFrames.decrement();
+            reply.release();
+        }
+    }
+}
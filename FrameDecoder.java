@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+// 每个连接的帧解码器：头部 type(2B) + length(4B)，v2的数据帧再加 seq(4B)
+// _clientToServer 和 v2 握手后面跟 length 字节的正文
+// 跨多次select保存读取进度，每次只读通道里已经到达的数据
+class FrameDecoder {
+    static final int COMPLETE = 0;
+    static final int INCOMPLETE = 1;
+    static final int EOF = -1;
+    private static final int MAX_HANDSHAKE_SIZE = 4096;
+
+    private final ServerConfig config;
+    private final AdmissionControl admission;
+    private long reserved;              // 正在读的正文记在全局预算上的字节数，交出去时归还
+    private ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE_V1);
+    byte messageType;
+    int version;                        // 握手帧的高字节：协议版本
+    int length;                         // 正文在线路上的长度
+    int seq;
+    int rawLength;                      // 原文长度，比 length 大说明正文压缩过
+    int headroom;                       // 分块正文前面预留的字节数，留给应答头部
+    int batchLimit;                     // 协商的批量帧正文上限，0表示不收批量帧
+    ByteBuffer body;                    // 池化的正文缓冲，读完后所有权交给调用方
+    FileChannel spool;                  // 大分块的临时文件，读完后所有权交给调用方
+    private long spooled;               // 已经落盘的字节数
+
+    FrameDecoder(ServerConfig config, AdmissionControl admission) {
+        this.config = config;
+        this.admission = admission;
+    }
+
+    // 握手完成后切换数据帧的头部格式
+    void setVersion(int version, int codec) {
+        header = ByteBuffer.allocate(Protocol.headerSize(version, codec));
+    }
+
+    // memoryAvailable：本连接还能占用的内存，放不下的分块直接落盘
+    int decode(SocketChannel client, long memoryAvailable) throws IOException {
+        if (spool != null) return spoolFrom(client);
+        if (body == null) {
+            if (client.read(header) == -1) return EOF;
+            if (header.hasRemaining()) return INCOMPLETE;
+            header.flip();
+            short type = header.getShort();
+            messageType = Protocol.messageTypeOf(type);
+            version = Protocol.versionOf(type);
+            length = header.getInt();
+            seq = header.hasRemaining() ? header.getInt() : 0;
+            rawLength = header.hasRemaining() ? header.getInt() : length;
+            boolean hasBody = messageType == reverseTcpServer._clientToServer || messageType == Protocol.BATCH
+                    || (messageType == reverseTcpServer._initialization && version >= Protocol.VERSION_2);
+            if (!hasBody) return COMPLETE;    // 其他报文没有正文
+            if (length < 0 || length > config.maxSegmentSize) throw new IOException("Invalid segment size: " + length);
+            if (messageType == Protocol.BATCH && (length > batchLimit || rawLength != length)) {
+                throw new IOException("Invalid batch size: " + length + " (limit " + batchLimit + ")");
+            }
+            if (messageType == reverseTcpServer._initialization && length > MAX_HANDSHAKE_SIZE) {
+                throw new IOException("Handshake too large: " + length);
+            }
+            if (rawLength != length && (rawLength < length || rawLength > Codec.MAX_BLOCK || messageType != reverseTcpServer._clientToServer)) {
+                throw new IOException("Invalid compressed segment: " + length + " -> " + rawLength);
+            }
+            headroom = messageType == reverseTcpServer._initialization ? 0 : header.capacity();
+            if (messageType == reverseTcpServer._clientToServer && rawLength == length       // 压缩过的分块不落盘，解压后最多 MAX_BLOCK
+                    && (length > config.streamThreshold || headroom + length > memoryAvailable)) {
+                spool = FileChannel.open(Files.createTempFile(config.spoolDir, "reverse-spool", ".seg"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                spooled = 0;
+                return spoolFrom(client);
+            }
+            body = BufferPool.shared().acquire(headroom + length);
+            body.position(headroom);
+            reserved = body.capacity();         // 和交出去之后应答的 memory() 记同样的数
+            admission.reserve(reserved);
+        }
+        if (body.hasRemaining() && client.read(body) == -1) return EOF;
+        return body.hasRemaining() ? INCOMPLETE : COMPLETE;
+    }
+
+    // 把通道里已到达的正文经过一个池化块写进临时文件
+    private int spoolFrom(SocketChannel client) throws IOException {
+        ByteBuffer chunk = BufferPool.shared().acquire(BufferPool.chunkSize);
+        try {
+            while (spooled < length) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), length - spooled));
+                int n = client.read(chunk);
+                if (n == -1) return EOF;
+                if (n == 0) return INCOMPLETE;
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    spooled += spool.write(chunk, spooled);
+                }
+            }
+            return COMPLETE;
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+    }
+
+    // 还没开始读下一帧（头部一个字节都没读到）
+    boolean atFrameBoundary() {
+        return body == null && spool == null && header.position() == 0;
+    }
+
+    // 一帧处理完毕，准备读下一帧；body/spool已经交出去的话这里置空即可
+    void reset() {
+        admission.reserve(-reserved);
+        reserved = 0;
+        header.clear();
+        body = null;
+        spool = null;
+    }
+
+    // 连接异常关闭时，读到一半的正文缓冲还回池里，临时文件删掉
+    void discard() {
+        BufferPool.shared().release(body);
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                System.err.println("Error closing spool file: " + e.getMessage());
+            }
+        }
+        reset();
+    }
+}
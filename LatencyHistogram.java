@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// 对数-线性分桶的直方图（HDR Histogram 的思路）：小于64的值精确计数，
+// 之后每个2的幂区间再等分成64个子桶，相对误差不超过1/64；记录只是一次原子加，可以常开
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // 分位数，q取0~1，返回所在桶的上界
+    public long percentile(double q) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    // 把另一个直方图的计数加进来，用于汇总多个线程各自的直方图
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    // 当前计数的拷贝；记录还在进行，拷出来的各项之间可能差几个，打印指标够用
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    // 从 earlier（同一个直方图更早的 snapshot）到现在新增的部分，用于按间隔打印分位数
+    // 新增部分的最大值只能取最高的非空桶的上界
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        int top = -1;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i) - earlier.counts.get(i);
+            if (c > 0) {
+                delta.counts.set(i, c);
+                delta.total.add(c);
+                top = i;
+            }
+        }
+        delta.sum.add(sum.sum() - earlier.sum.sum());
+        if (top >= 0) delta.max.set(Math.min(upperBound(top), max.get()));
+        return delta;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);          // >= SUB_BITS
+        int shift = exp - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((long) (sub + SUB_COUNT + 1) << shift) - 1;
+    }
+}
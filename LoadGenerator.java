@@ -0,0 +1,635 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+// 压测工具：在本机开成百上千个连接，按 _initialization/_clientToServer 协议不停地发分块，统计吞吐、错误和每个分块的延迟
+// 两种发压方式：
+//   闭环（--rate 0）：每个连接始终保持 window 个分块在途，测的是服务器能跑多快
+//   开环（--rate R）：按泊松到达每秒总共发 R 个分块，不管服务器快慢；延迟从“计划发出”的时刻算起，
+//                     服务器跟不上时排队时间也算进去，这样才看得出饱和点（避免 coordinated omission）
+// 每个发压线程一个Selector，负责一部分连接，线程之间只共享计数器和直方图
+public class LoadGenerator {
+    static final String USAGE = "用法: java LoadGenerator [--host 127.0.0.1] [--port 12345] [--connections 连接数(默认100)] [--threads 发压线程数]\n"
+            + "        [--duration 秒(默认30)] [--warmup 预热秒数,不计入统计(默认5)] [--rate 每秒分块数,0为闭环(默认0)] [--arrival poisson|uniform]\n"
+            + "        [--window 每连接在途分块数(默认1)] [--size fixed:N | uniform:MIN-MAX | exp:MEAN(默认fixed:4096)]\n"
+            + "        [--payload random | file:路径] [--mode utf8|bytes] [--legacy 使用v1停等协议] [--verify 校验应答内容]";
+
+    String host = "127.0.0.1";
+    int port = 12345;
+    int connections = 100;
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    int duration = 30;
+    int warmup = 5;
+    double rate = 0;
+    boolean poisson = true;
+    int window = 1;
+    SizeDistribution sizes = SizeDistribution.parse("fixed:4096");
+    String payloadSource = "random";
+    int mode = SegmentReverser.MODE_UTF8;
+    boolean legacy = false;
+    boolean verify = false;
+
+    // 各线程共享的统计
+    final LongAdder established = new LongAdder();
+    final LongAdder connectFailed = new LongAdder();
+    final LongAdder sent = new LongAdder();
+    final LongAdder completed = new LongAdder();
+    final LongAdder completedBytes = new LongAdder();
+    final LongAdder ioErrors = new LongAdder();
+    final LongAdder protocolErrors = new LongAdder();
+    final LongAdder mismatches = new LongAdder();
+    final LongAdder unfinished = new LongAdder();          // 结束时还没收到应答的分块
+    final LongAdder measured = new LongAdder();             // 统计窗口内完成的分块
+    final LongAdder measuredBytes = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram(); // 纳秒
+
+    ByteBuffer payload;             // 所有分块的内容都从这里切，只读共享
+    long startTime;
+    long warmupEnd;
+    long deadline;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host": generator.host = args[++i]; break;
+                    case "--port": generator.port = Integer.parseInt(args[++i]); break;
+                    case "--connections": generator.connections = Integer.parseInt(args[++i]); break;
+                    case "--threads": generator.threads = Integer.parseInt(args[++i]); break;
+                    case "--duration": generator.duration = Integer.parseInt(args[++i]); break;
+                    case "--warmup": generator.warmup = Integer.parseInt(args[++i]); break;
+                    case "--rate": generator.rate = Double.parseDouble(args[++i]); break;
+                    case "--arrival": generator.poisson = args[++i].equals("poisson"); break;
+                    case "--window": generator.window = Integer.parseInt(args[++i]); break;
+                    case "--size": generator.sizes = SizeDistribution.parse(args[++i]); break;
+                    case "--payload": generator.payloadSource = args[++i]; break;
+                    case "--mode": generator.mode = SegmentReverser.parseMode(args[++i]); break;
+                    case "--legacy": generator.legacy = true; break;
+                    case "--verify": generator.verify = true; break;
+                    default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (generator.connections < 1 || generator.threads < 1 || generator.window < 1) {
+                throw new IllegalArgumentException("connections, threads and window must be >= 1");
+            }
+            if (generator.warmup >= generator.duration) {
+                throw new IllegalArgumentException("warmup must be shorter than duration");
+            }
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        generator.run();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        payload = loadPayload();
+        threads = Math.min(threads, connections);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        System.out.printf("target %s, %d connections on %d threads, %s, size %s, window %d, protocol v%d%n",
+                address, connections, threads, rate > 0 ? "open loop " + rate + " seg/s (" + (poisson ? "poisson" : "uniform") + ")" : "closed loop",
+                sizes, window, legacy ? Protocol.VERSION_1 : Protocol.VERSION_2);
+
+        startTime = System.nanoTime();
+        warmupEnd = startTime + warmup * 1_000_000_000L;
+        deadline = startTime + duration * 1_000_000_000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int share = connections / threads + (i < connections % threads ? 1 : 0);
+            Worker worker = new Worker(i, address, share, rate / threads);
+            workers.add(worker);
+            worker.start();
+        }
+
+        // 每秒打印一行进度
+        long lastCompleted = 0;
+        while (workers.stream().anyMatch(Thread::isAlive)) {
+            Thread.sleep(1000);
+            long done = completed.sum();
+            System.out.printf("t=%3ds  connections %d (failed %d)  %d seg/s  errors %d  p99 %.2f ms%n",
+                    (System.nanoTime() - startTime) / 1_000_000_000L, established.sum(), connectFailed.sum(),
+                    done - lastCompleted, errors(), latency.percentile(0.99) / 1e6);
+            lastCompleted = done;
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        report();
+    }
+
+    long errors() {
+        return connectFailed.sum() + ioErrors.sum() + protocolErrors.sum() + mismatches.sum();
+    }
+
+    void report() {
+        double seconds = duration - warmup;
+        System.out.println("---------------------------------------------------------------");
+        System.out.printf("connections: %d established, %d failed%n", established.sum(), connectFailed.sum());
+        System.out.printf("segments:    sent %d, completed %d, unfinished %d%n", sent.sum(), completed.sum(), unfinished.sum());
+        System.out.printf("errors:      %d (connect %d, io %d, protocol %d, mismatch %d)%n",
+                errors(), connectFailed.sum(), ioErrors.sum(), protocolErrors.sum(), mismatches.sum());
+        System.out.printf("throughput:  %.1f seg/s, %.2f MB/s (measured over %.0f s after warmup)%n",
+                measured.sum() / seconds, measuredBytes.sum() / 1e6 / seconds, seconds);
+        System.out.printf("latency ms:  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f  mean %.3f%n",
+                latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6, latency.percentile(0.999) / 1e6,
+                latency.max() / 1e6, latency.mean() / 1e6);
+    }
+
+    // 分块内容：random 生成可打印ASCII（utf8模式）或任意字节（bytes模式）；file 读入文件最多64MiB
+    private ByteBuffer loadPayload() throws IOException {
+        int capacity = Math.max(sizes.max(), 1 << 20);
+        ByteBuffer buffer;
+        if (payloadSource.startsWith("file:")) {
+            try (FileChannel channel = FileChannel.open(Paths.get(payloadSource.substring(5)), StandardOpenOption.READ)) {
+                long size = Math.min(channel.size(), 64L << 20);
+                if (size < sizes.max()) throw new IOException("Payload file is smaller than the largest segment: " + size);
+                buffer = ByteBuffer.allocateDirect((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) break;
+                }
+            }
+        } else if (payloadSource.equals("random")) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            Random random = new Random(42);
+            byte[] block = new byte[4096];
+            while (buffer.hasRemaining()) {
+                if (mode == SegmentReverser.MODE_BYTES) {
+                    random.nextBytes(block);
+                } else {
+                    for (int i = 0; i < block.length; i++) block[i] = (byte) (' ' + random.nextInt(95));
+                }
+                buffer.put(block, 0, Math.min(block.length, buffer.remaining()));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown payload source: " + payloadSource);
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // 一个发压线程：自己的Selector + 一部分连接
+    private class Worker extends Thread {
+        private static final int MAX_PENDING_CONNECTS = 128;    // 同时在建立中的连接，太多会挤爆服务器的accept队列
+
+        private final InetSocketAddress address;
+        private final int connectionCount;
+        private final double ratePerThread;
+        private final Random random;
+        private final List<VirtualClient> clients = new ArrayList<>();
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(256 << 10);   // 不校验时应答正文读进来直接丢掉
+        private Selector selector;
+        private int connectsStarted;
+        private int pendingConnects;
+        private int nextClient;
+        private long nextArrival;
+
+        Worker(int id, InetSocketAddress address, int connectionCount, double ratePerThread) {
+            super("load-" + id);
+            this.address = address;
+            this.connectionCount = connectionCount;
+            this.ratePerThread = ratePerThread;
+            this.random = new Random(id);
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                loop();
+            } catch (IOException e) {
+                System.err.println(getName() + " failed: " + e.getMessage());
+            } finally {
+                for (VirtualClient client : clients) {
+                    unfinished.add(client.queued.size() + client.inFlight());
+                    client.close();
+                }
+                try {
+                    if (selector != null) selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void loop() throws IOException {
+            long drainDeadline = deadline + 5_000_000_000L;          // 到点后最多再等5秒收尾
+            nextArrival = startTime;
+            while (true) {
+                long now = System.nanoTime();
+                while (pendingConnects < MAX_PENDING_CONNECTS && connectsStarted < connectionCount && now < deadline) {
+                    connect();
+                }
+                if (ratePerThread > 0) {
+                    while (nextArrival <= now && nextArrival < deadline) {
+                        dispatch(nextArrival);
+                        nextArrival += interArrival();
+                    }
+                }
+                if (now >= deadline && (idle() || now >= drainDeadline)) return;
+
+                long timeout = 100;
+                if (ratePerThread > 0 && nextArrival < deadline) {
+                    timeout = Math.max(1, (nextArrival - now) / 1_000_000);
+                }
+                selector.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    VirtualClient client = (VirtualClient) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) client.finishConnect();
+                        if (key.isValid() && key.isReadable()) client.read();
+                        if (key.isValid() && key.isWritable()) client.write();
+                    } catch (IOException e) {
+                        if (client.state == VirtualClient.CONNECTING) {
+                            pendingConnects--;
+                            connectFailed.increment();
+                        } else {
+                            ioErrors.increment();
+                        }
+                        client.fail();
+                    }
+                }
+            }
+        }
+
+        private long interArrival() {
+            double mean = 1e9 / ratePerThread;
+            return Math.max(1, (long) (poisson ? -Math.log(1 - random.nextDouble()) * mean : mean));
+        }
+
+        private boolean idle() {
+            for (VirtualClient client : clients) {
+                if (client.state != VirtualClient.CLOSED && (client.inFlight() > 0 || !client.queued.isEmpty())) return false;
+            }
+            return true;
+        }
+
+        private void connect() {
+            connectsStarted++;
+            VirtualClient client = new VirtualClient(this);
+            clients.add(client);
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                client.channel = channel;
+                if (channel.connect(address)) {
+                    client.key = channel.register(selector, 0, client);
+                    client.connected();
+                } else {
+                    pendingConnects++;
+                    client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+            } catch (IOException e) {
+                connectFailed.increment();
+                client.fail();
+            }
+        }
+
+        // 开环：新到的分块轮流交给还活着的连接，连接还在握手就先排队
+        private void dispatch(long intendedStart) {
+            for (int tried = 0; tried < clients.size(); tried++) {
+                VirtualClient client = clients.get(nextClient);
+                nextClient = (nextClient + 1) % clients.size();
+                if (client.state != VirtualClient.CLOSED) {
+                    client.submit(intendedStart);
+                    return;
+                }
+            }
+            unfinished.increment();                 // 没有可用的连接
+        }
+
+        Request newRequest(long intendedStart) {
+            int size = sizes.next(random);
+            int offset = payload.limit() == size ? 0 : random.nextInt(payload.limit() - size + 1);
+            return new Request(intendedStart, offset, size);
+        }
+
+        void connectFinished() {
+            pendingConnects--;
+        }
+    }
+
+    // 一个模拟客户端连接：非阻塞状态机 连接 -> 握手 -> 收发分块
+    private class VirtualClient {
+        static final int CONNECTING = 0;
+        static final int HANDSHAKE = 1;
+        static final int READY = 2;
+        static final int CLOSED = 3;
+
+        private final Worker worker;
+        SocketChannel channel;
+        SelectionKey key;
+        int state = CONNECTING;
+        int version;
+        int agreedWindow = 1;
+
+        final Queue<Request> queued = new ArrayDeque<>();            // 还没发出去的分块
+        private final Map<Integer, Request> inFlightBySeq = new HashMap<>();   // v2 按seq对应应答
+        private final Queue<Request> inFlightInOrder = new ArrayDeque<>();     // v1 应答按顺序回来
+        private int nextSeq;
+
+        private ByteBuffer handshakeOut;
+        private final ByteBuffer header;
+        private ByteBuffer handshakeBody;
+        private final ByteBuffer[] sending = new ByteBuffer[2];      // 头部 + 正文，聚集写
+        private Request current;                                     // 正在读应答正文的分块
+        private int bodyRemaining;
+        private byte[] received;                                     // --verify 时收集应答正文
+
+        VirtualClient(Worker worker) {
+            this.worker = worker;
+            version = legacy ? Protocol.VERSION_1 : Protocol.VERSION_2;
+            header = ByteBuffer.allocate(Protocol.HEADER_SIZE_V2);
+        }
+
+        // 已发出、应答还没收完的分块（包括正在读正文的那个）
+        int inFlight() {
+            return (version >= Protocol.VERSION_2 ? inFlightBySeq.size() : inFlightInOrder.size()) + (current != null ? 1 : 0);
+        }
+
+        void finishConnect() throws IOException {
+            if (!channel.finishConnect()) return;
+            worker.connectFinished();
+            connected();
+        }
+
+        // 连上了：发握手。N 事先不知道，开环按速率估个数，闭环填0；服务器只用它打日志
+        void connected() throws IOException {
+            established.increment();
+            state = HANDSHAKE;
+            long n = rate > 0 ? (long) Math.ceil(rate * duration / connections) : 0;
+            if (version >= Protocol.VERSION_2) {
+                Map<Integer, Long> options = new LinkedHashMap<>();
+                options.put(Protocol.OPT_SEGMENTS, n);
+                options.put(Protocol.OPT_WINDOW, (long) window);
+                options.put(Protocol.OPT_MODE, (long) mode);
+                handshakeOut = Protocol.handshake(version, reverseTcpClient._initialization, options);
+                header.clear().limit(Protocol.HEADER_SIZE_V1);
+            } else {
+                handshakeOut = ByteBuffer.allocate(reverseTcpClient._headerSize);
+                handshakeOut.putShort(reverseTcpClient._initialization);
+                handshakeOut.putInt((int) n);
+                handshakeOut.flip();
+                header.clear().limit(2);
+            }
+            channel.write(handshakeOut);
+            key.interestOps(SelectionKey.OP_READ | (handshakeOut.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void submit(long intendedStart) {
+            queued.add(worker.newRequest(intendedStart));
+            if (state == READY) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    ioErrors.increment();
+                    fail();
+                }
+            }
+        }
+
+        void read() throws IOException {
+            while (true) {
+                if (state == HANDSHAKE) {
+                    if (!readAgreement()) return;
+                    continue;
+                }
+                if (current == null) {
+                    if (channel.read(header) == -1) throw new IOException("Server closed the connection");
+                    if (header.hasRemaining()) return;
+                    header.flip();
+                    short type = header.getShort();
+                    int length = header.getInt();
+                    int seq = version >= Protocol.VERSION_2 ? header.getInt() : 0;
+                    header.clear().limit(Protocol.headerSize(version));
+                    Request request = version >= Protocol.VERSION_2 ? inFlightBySeq.remove(seq) : inFlightInOrder.poll();
+                    if (type != reverseTcpClient._serverToClient || request == null || length != request.size) {
+                        protocolErrors.increment();
+                        fail();
+                        return;
+                    }
+                    current = request;
+                    bodyRemaining = length;
+                    received = verify ? new byte[length] : null;
+                }
+                while (bodyRemaining > 0) {
+                    ByteBuffer scratch = worker.scratch;
+                    scratch.clear().limit(Math.min(scratch.capacity(), bodyRemaining));
+                    int n = channel.read(scratch);
+                    if (n == -1) throw new IOException("Server closed the connection");
+                    if (n == 0) return;
+                    if (received != null) {
+                        scratch.flip();
+                        scratch.get(received, current.size - bodyRemaining, n);
+                    }
+                    bodyRemaining -= n;
+                }
+                complete(current);
+                current = null;
+                received = null;
+                write();                            // 窗口空出来了，接着发
+            }
+        }
+
+        // 读同意报文：v1是2字节的type；v2是6字节头部 + 选项区
+        private boolean readAgreement() throws IOException {
+            if (handshakeBody == null) {
+                if (channel.read(header) == -1) throw new IOException("Server closed the connection during handshake");
+                if (header.hasRemaining()) return false;
+                header.flip();
+                short type = header.getShort();
+                if (version < Protocol.VERSION_2) {
+                    if (type != reverseTcpClient._agreement) throw new IOException("Unexpected handshake reply: " + type);
+                    ready(1);
+                    return true;
+                }
+                if (type != Protocol.handshakeType(Protocol.VERSION_2, reverseTcpClient._agreement)) {
+                    throw new IOException("Server does not speak protocol v2, rerun with --legacy");
+                }
+                handshakeBody = ByteBuffer.allocate(header.getInt());
+            }
+            if (channel.read(handshakeBody) == -1) throw new IOException("Server closed the connection during handshake");
+            if (handshakeBody.hasRemaining()) return false;
+            handshakeBody.flip();
+            Map<Integer, Long> accepted = Protocol.parseOptions(handshakeBody);
+            handshakeBody = null;
+            ready(accepted.getOrDefault(Protocol.OPT_WINDOW, 1L).intValue());
+            return true;
+        }
+
+        private void ready(int agreedWindow) throws IOException {
+            this.agreedWindow = Math.max(1, Math.min(window, agreedWindow));
+            state = READY;
+            header.clear().limit(Protocol.headerSize(version));
+            if (rate <= 0) refill();
+            write();
+        }
+
+        // 闭环：补满窗口
+        private void refill() {
+            long now = System.nanoTime();
+            if (now >= deadline) return;
+            while (queued.size() + inFlight() < agreedWindow) {
+                queued.add(worker.newRequest(now));
+            }
+        }
+
+        private void complete(Request request) {
+            long now = System.nanoTime();
+            completed.increment();
+            completedBytes.add(request.size);
+            if (received != null) {
+                byte[] expected = new byte[request.size];
+                payload.get(request.offset, expected);
+                SegmentReverser.reverse(ByteBuffer.wrap(expected), mode);
+                if (!Arrays.equals(expected, received)) mismatches.increment();
+            }
+            if (request.intendedStart >= warmupEnd && request.intendedStart < deadline) {
+                latency.record(now - request.intendedStart);
+                measured.increment();
+                measuredBytes.add(request.size);
+            }
+            if (rate <= 0) refill();
+        }
+
+        // 在窗口允许的范围内尽量发，发不动就关注OP_WRITE
+        void write() throws IOException {
+            if (state == HANDSHAKE) {
+                channel.write(handshakeOut);
+                key.interestOps(SelectionKey.OP_READ | (handshakeOut.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+                return;
+            }
+            if (state != READY) return;
+            while (true) {
+                if (sending[1] == null) {
+                    if (queued.isEmpty() || inFlight() >= agreedWindow) break;
+                    Request request = queued.poll();
+                    int seq = nextSeq++;
+                    ByteBuffer frame = ByteBuffer.allocate(Protocol.headerSize(version));
+                    Protocol.putHeader(frame, version, reverseTcpClient._clientToServer, request.size, seq);
+                    frame.flip();
+                    sending[0] = frame;
+                    sending[1] = payload.duplicate().limit(request.offset + request.size).position(request.offset);
+                    if (version >= Protocol.VERSION_2) {
+                        inFlightBySeq.put(seq, request);
+                    } else {
+                        inFlightInOrder.add(request);
+                    }
+                    sent.increment();
+                }
+                channel.write(sending);
+                if (sending[1].hasRemaining()) break;
+                sending[0] = null;
+                sending[1] = null;
+            }
+            key.interestOps(SelectionKey.OP_READ | (sending[1] != null ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void fail() {
+            unfinished.add(queued.size() + inFlight());
+            queued.clear();
+            current = null;
+            inFlightBySeq.clear();
+            inFlightInOrder.clear();
+            close();
+        }
+
+        void close() {
+            state = CLOSED;
+            if (key != null) key.cancel();
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // 一个分块请求：内容是 payload 的 [offset, offset+size)
+    private static class Request {
+        final long intendedStart;       // 计划发出的时刻，延迟从这里算起
+        final int offset;
+        final int size;
+
+        Request(long intendedStart, int offset, int size) {
+            this.intendedStart = intendedStart;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    // 分块大小分布：fixed:N  uniform:MIN-MAX  exp:MEAN（指数分布，截断在 8*MEAN）
+    static class SizeDistribution {
+        private final String spec;
+        private final String kind;
+        private final int a;
+        private final int b;
+
+        private SizeDistribution(String spec, String kind, int a, int b) {
+            this.spec = spec;
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            if (parts.length != 2) throw new IllegalArgumentException("Bad size distribution: " + spec);
+            switch (parts[0]) {
+                case "fixed": {
+                    int n = Integer.parseInt(parts[1]);
+                    return new SizeDistribution(spec, "fixed", n, n);
+                }
+                case "uniform": {
+                    String[] bounds = parts[1].split("-");
+                    int min = Integer.parseInt(bounds[0]);
+                    int max = Integer.parseInt(bounds[1]);
+                    if (min > max) throw new IllegalArgumentException("Bad size distribution: " + spec);
+                    return new SizeDistribution(spec, "uniform", min, max);
+                }
+                case "exp": {
+                    int mean = Integer.parseInt(parts[1]);
+                    return new SizeDistribution(spec, "exp", mean, (int) Math.min(Integer.MAX_VALUE / 2, 8L * mean));
+                }
+                default:
+                    throw new IllegalArgumentException("Bad size distribution: " + spec);
+            }
+        }
+
+        int next(Random random) {
+            switch (kind) {
+                case "uniform": return a + random.nextInt(b - a + 1);
+                case "exp": return (int) Math.min(b, Math.max(1, -Math.log(1 - random.nextDouble()) * a));
+                default: return a;
+            }
+        }
+
+        int max() {
+            return b;
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+}
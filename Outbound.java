@@ -0,0 +1,23 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+// 待发送的应答
+abstract class Outbound {
+    long receivedAt;                // 对应分块收齐的时刻（System.nanoTime），握手应答为0
+
+    // 非阻塞地尽量写，整帧写完返回true
+    abstract boolean writeTo(SocketChannel client) throws IOException;
+
+    // 占用的内存字节数，用于每连接的内存上限
+    abstract long memory();
+
+    // 这一帧带回去的分块字节数（压缩前，不含头部和长度前缀），和收到时记的 bytesIn 口径一致
+    abstract long payload();
+
+    // 这一帧带的分块数，批量帧不止一个
+    int segments() {
+        return 1;
+    }
+
+    abstract void release();
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 协议版本与帧格式，服务端和客户端共用
+//
+// v1（旧协议）：头部6字节 type(2B) + length(4B)，停等，一问一答
+// v2（流水线）：握手时 type 的高字节填协议版本，length 是后面选项区的长度，选项区为若干个 id(1B) + value(8B)；
+//              之后的数据帧头部10字节 type(2B) + length(4B) + seq(4B)，客户端最多同时有 window 个分块在途，
+//              服务端可以乱序应答，客户端按 seq 找回分块
+//              握手选定了压缩算法（OPT_CODEC）时数据帧头部再加 rawLength(4B)，共14字节，见 Codec
+//              多文件会话（OPT_SESSION）：一个连接上依次传多个文件，每个文件的分块夹在 BEGIN_FILE / END_FILE 两个
+//              控制帧中间；控制帧和数据帧头部相同，没有正文，seq 填文件号；服务器把这个文件的应答都排出去之后
+//              回一个 END_FILE，length 是它收到的分块数
+//              批量帧（OPT_BATCH）：多个小分块拼成一帧 BATCH，正文是若干个 length(4B) + 分块，seq 是第一块的序号，
+//              后面的依次加一；服务器把每一块就地反转，按同样的格式回一帧 BATCH_REPLY；批量帧不压缩，rawLength 等于 length
+//              窗口按帧计，一个批量帧只占一个名额
+public final class Protocol {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int HEADER_SIZE_V1 = 6;
+    public static final int HEADER_SIZE_V2 = 10;
+    public static final int HEADER_SIZE_V2_CODEC = 14;
+
+    // 握手选项
+    public static final int OPT_SEGMENTS = 1;           // 分块个数 N；自适应分块时不带，客户端关闭输出即结束
+    public static final int OPT_WINDOW = 2;             // 在途分块上限
+    public static final int OPT_MODE = 3;               // 反转方式，见 SegmentReverser.MODE_*
+    public static final int OPT_CODECS = 4;             // 客户端支持的压缩算法，位掩码，见 Codec.mask
+    public static final int OPT_CODEC = 5;              // 服务器选定的压缩算法
+    public static final int OPT_RESUME = 6;             // 续传会话号：客户端只重传上次没完成的分块，服务器原样回显
+    public static final int OPT_SESSION = 7;            // 多文件会话，服务器支持就回显1
+    public static final int OPT_BATCH = 8;              // 批量帧正文的字节上限，服务器回显它接受的上限
+
+    // 多文件会话的控制帧
+    public static final byte BEGIN_FILE = 0x05;
+    public static final byte END_FILE = 0x06;
+
+    // 批量帧
+    public static final byte BATCH = 0x07;
+    public static final byte BATCH_REPLY = 0x08;
+    public static final int BATCH_ENTRY_HEADER = 4;     // 批量帧里每个分块前面的长度
+    public static final int MAX_BATCH = 1 << 20;        // 服务器接受的批量帧正文上限
+
+    private Protocol() {
+    }
+
+    public static int headerSize(int version) {
+        return version >= VERSION_2 ? HEADER_SIZE_V2 : HEADER_SIZE_V1;
+    }
+
+    public static int headerSize(int version, int codec) {
+        return version >= VERSION_2 && codec != Codec.NONE ? HEADER_SIZE_V2_CODEC : headerSize(version);
+    }
+
+    // 握手帧里 type 字段：低字节是消息类型，高字节是协议版本（旧协议为0）
+    public static short handshakeType(int version, byte messageType) {
+        return (short) ((version >= VERSION_2 ? version << 8 : 0) | messageType);
+    }
+
+    public static int versionOf(short type) {
+        int version = (type >> 8) & 0xFF;
+        return version == 0 ? VERSION_1 : version;
+    }
+
+    public static byte messageTypeOf(short type) {
+        return (byte) type;
+    }
+
+    // 数据帧头部；v1没有seq
+    public static void putHeader(ByteBuffer buffer, int version, byte messageType, int length, int seq) {
+        buffer.putShort(messageType);
+        buffer.putInt(length);
+        if (version >= VERSION_2) {
+            buffer.putInt(seq);
+        }
+    }
+
+    // 选定了压缩算法时多写原文长度；length < rawLength 表示正文是压缩过的
+    public static void putHeader(ByteBuffer buffer, int version, int codec, byte messageType, int length, int seq, int rawLength) {
+        putHeader(buffer, version, messageType, length, seq);
+        if (version >= VERSION_2 && codec != Codec.NONE) {
+            buffer.putInt(rawLength);
+        }
+    }
+
+    // 完整的v2握手帧：头部 + 选项区
+    public static ByteBuffer handshake(int version, byte messageType, Map<Integer, Long> options) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE_V1 + options.size() * 9);
+        buffer.putShort(handshakeType(version, messageType));
+        buffer.putInt(options.size() * 9);
+        for (Map.Entry<Integer, Long> option : options.entrySet()) {
+            buffer.put((byte) (int) option.getKey());
+            buffer.putLong(option.getValue());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // 解析选项区，不认识的选项原样保留，由调用方忽略
+    public static Map<Integer, Long> parseOptions(ByteBuffer body) throws IOException {
+        if (body.remaining() % 9 != 0) {
+            throw new IOException("Malformed handshake options: " + body.remaining() + " bytes");
+        }
+        Map<Integer, Long> options = new LinkedHashMap<>();
+        while (body.hasRemaining()) {
+            int id = body.get() & 0xFF;
+            options.put(id, body.getLong());
+        }
+        return options;
+    }
+}
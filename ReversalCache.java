@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// 反转结果缓存：客户端经常重复发相同的内容（日志模板、重试的文件），相同的分块只反转一次
+// 按正文内容的64位哈希 + 反转方式查找，命中后再逐字节比对原文，哈希碰撞只会导致未命中
+// 每个条目是一块堆外缓冲 [原文 | 反转结果]，总字节数受预算限制，超出时按LRU淘汰
+// 命中的应答直接从缓存的缓冲写出（只读副本），条目被淘汰时还在发送的副本照常发完，由GC回收
+// 只见过一次的内容不进缓存（门卫数组记最近见过的哈希），全是新内容时只多一次哈希的开销
+public final class ReversalCache {
+    private static final int DOORKEEPER_SIZE = 1 << 13;
+
+    private final long budget;
+    private final int maxEntry;
+    private final ServerMetrics metrics;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);   // 按访问顺序，最老的在前
+    private final long[] seen = new long[DOORKEEPER_SIZE];                                        // 只是启发式，并发读写不加锁
+    private long bytes;
+
+    public ReversalCache(long budget, int maxEntry, ServerMetrics metrics) {
+        this.budget = budget;
+        this.maxEntry = (int) Math.min(maxEntry, budget / 2);        // 条目连原文带结果占两倍
+        this.metrics = metrics;
+    }
+
+    private static final class Entry {
+        final ByteBuffer data;
+        final int length;
+        final int mode;
+
+        Entry(ByteBuffer data, int length, int mode) {
+            this.data = data;
+            this.length = length;
+            this.mode = mode;
+        }
+    }
+
+    // 反转 buffer 的 [from, to)：命中时 buffer 不动，返回缓存里反转结果的只读副本（position 0，limit 为长度）
+    // 没命中时就地反转并返回null，见过不止一次的内容顺便放进缓存
+    public ByteBuffer reverse(ByteBuffer buffer, int from, int to, int mode) {
+        int length = to - from;
+        if (length == 0 || length > maxEntry) {
+            SegmentReverser.reverse(buffer, from, to, mode);
+            return null;
+        }
+        long key = hash(buffer, from, to) * 31 + mode;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.length == length && entry.mode == mode
+                && buffer.slice(from, length).mismatch(entry.data.slice(0, length)) == -1) {
+            metrics.cacheHits.increment();
+            metrics.cacheBytesSaved.add(length);
+            return entry.data.slice(length, length).asReadOnlyBuffer();
+        }
+        metrics.cacheMisses.increment();
+
+        int slot = (int) (key ^ key >>> 32) & (DOORKEEPER_SIZE - 1);
+        if (seen[slot] != key) {
+            seen[slot] = key;
+            SegmentReverser.reverse(buffer, from, to, mode);
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(length * 2);
+        data.put(0, buffer, from, length);
+        SegmentReverser.reverse(buffer, from, to, mode);
+        data.put(length, buffer, from, length);
+        put(key, new Entry(data, length, mode));
+        return null;
+    }
+
+    private synchronized void put(long key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) bytes -= old.data.capacity();
+        bytes += entry.data.capacity();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > budget && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.data.capacity();
+            metrics.cacheEvictions.increment();
+        }
+        metrics.cacheBytes.set(bytes);
+    }
+
+    // 按8字节一组混合的64位哈希，最后做一次 fmix64 雪崩；不需要抗碰撞，命中时会比对全文
+    static long hash(ByteBuffer buffer, int from, int to) {
+        long h = (to - from) * 0x9E3779B97F4A7C15L;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            h = Long.rotateLeft(h ^ buffer.getLong(i) * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+        for (; i < to; i++) {
+            h = (h ^ (buffer.get(i) & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// 反转文件写入类
+// 预先把目标文件设为源文件大小，每个反转后的分块直接写到镜像偏移 fileSize - position - size 处，
+// 总I/O量为O(文件大小)，分块到达顺序无关，最后统一fsync一次
+class ReversedFileWriter implements Closeable {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    public ReversedFileWriter(String savePath, long fileSize) throws IOException {
+        this.raf = new RandomAccessFile(savePath, "rw");
+        this.fileSize = fileSize;
+        raf.setLength(fileSize);                // 预分配，同时截掉旧文件多余的部分
+        channel = raf.getChannel();
+    }
+
+    // position是该分块在源文件中的偏移，data是完整的反转后内容
+    public void write(long position, ByteBuffer data) throws IOException {
+        write(position, data.remaining(), 0, data);
+    }
+
+    public void write(long position, byte[] data) throws IOException {
+        write(position, ByteBuffer.wrap(data));
+    }
+
+    // 分块写：size是整段反转结果的长度，chunk是其中从offsetInSegment开始的一部分
+    public void write(long position, int size, long offsetInSegment, ByteBuffer chunk) throws IOException {
+        long offset = fileSize - position - size;
+        if (offset < 0 || offsetInSegment + chunk.remaining() > size) {
+            throw new IOException("Segment out of range: position " + position + ", size " + size);
+        }
+        offset += offsetInSegment;
+        while (chunk.hasRemaining()) {
+            offset += channel.write(chunk, offset);  // 定位写，不改变通道位置，多线程可并发写不同区间
+        }
+    }
+
+    // 只保证已写的数据落盘，续传日志标记分块完成之前调用
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// 批量帧的发送缓冲：小分块连同长度前缀依次读进来，攒够字节数或块数就整帧发出
+// 不设等待时间：分块都是现成的，发送线程攒批时手上占着窗口名额、不会停下来等；碰到大分块、控制帧或者分块发完，攒着的都立刻发出
+// 只在握手协商了 OPT_BATCH 时使用，正文上限取两边较小的；压缩的分块和放不下的大分块照常一块一帧
+class SegmentBatch implements Closeable {
+    final ByteBuffer body;
+    private final int maxBytes;
+    private final int maxCount;
+    int count;
+    int firstSeq;
+
+    SegmentBatch(int maxBytes, int maxCount) {
+        this.maxBytes = maxBytes;
+        this.maxCount = maxCount;
+        body = BufferPool.shared().acquire(maxBytes);
+        body.clear().limit(maxBytes);
+    }
+
+    // 这么大的分块能不能进批量帧
+    boolean fits(int size) {
+        return Protocol.BATCH_ENTRY_HEADER + size <= maxBytes;
+    }
+
+    boolean hasRoom(int size) {
+        return count < maxCount && body.remaining() >= Protocol.BATCH_ENTRY_HEADER + size;
+    }
+
+    void add(FileChannel source, reverseTcpClient.FileSegment segment, int seq) throws IOException {
+        if (count == 0) firstSeq = seq;
+        body.putInt(segment.size);
+        ByteBuffer entry = body.slice(body.position(), segment.size);
+        while (entry.hasRemaining()) {
+            if (source.read(entry, segment.position + entry.position()) == -1) {
+                throw new IOException("Unexpected end of file at " + (segment.position + entry.position()));
+            }
+        }
+        body.position(body.position() + segment.size);
+        count++;
+    }
+
+    boolean isFull() {
+        return count >= maxCount || body.remaining() <= Protocol.BATCH_ENTRY_HEADER;
+    }
+
+    void clear() {
+        body.clear().limit(maxBytes);
+        count = 0;
+    }
+
+    @Override
+    public void close() {
+        BufferPool.shared().release(body);
+    }
+}
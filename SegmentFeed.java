@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+// 边发边产生分块的来源：自适应分块（SegmentSizer）、多文件会话（ClientSession）
+// 发送线程用 next() 取下一个分块，接收线程用 acked() 报告应答、用 control() 处理分块以外的帧
+interface SegmentFeed {
+    // 下一个要发的分块，没有了返回null；需要时可以先通过 sender 发控制帧
+    reverseTcpClient.FileSegment next(SendThread sender) throws IOException;
+
+    // 已经不会再有新的分块，并且该收的回执都收到了
+    boolean isFinished();
+
+    default void acked(reverseTcpClient.FileSegment segment, long now) {
+    }
+
+    // 不是分块应答的帧，处理了返回true
+    default boolean control(byte messageType, int id, int length) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// 内存里的分块应答：原地反转，反转结果和原文等长，头部直接写进预留位置，整块一次写出
+// 协商了压缩时，反转后再压缩到新缓冲，压不小就还发原文
+// 反转结果缓存命中时不反转：正文缓冲直接还掉，头部单独一块，和缓存里的结果一起聚集写出
+// reverse() 不碰连接状态，可以放到线程池里做
+class SegmentReply extends BufferedReply {
+    final int segmentSize;
+    private final int headerSize;
+    private final int version;
+    private final int mode;
+    private final int seq;
+    private final int codec;
+    private final int compressThreshold;
+    private final ReversalCache cache;
+    private ByteBuffer[] frame;             // 缓存命中时为 {头部, 缓存里的反转结果}
+    boolean compressed;
+
+    SegmentReply(ByteBuffer buffer, int headerSize, int version, int mode, int seq, int codec, int compressThreshold, ReversalCache cache) {
+        super(buffer);
+        this.segmentSize = buffer.limit() - headerSize;
+        this.headerSize = headerSize;
+        this.version = version;
+        this.mode = mode;
+        this.seq = seq;
+        this.codec = codec;
+        this.compressThreshold = compressThreshold;
+        this.cache = cache;
+    }
+
+    void reverse() {
+        ByteBuffer cached = null;
+        if (cache != null) {
+            cached = cache.reverse(buffer, headerSize, buffer.limit(), mode);
+        } else {
+            SegmentReverser.reverse(buffer, headerSize, buffer.limit(), mode);
+        }
+        int length = segmentSize;
+        if (codec != Codec.NONE && segmentSize >= compressThreshold && segmentSize <= Codec.MAX_BLOCK) {
+            ByteBuffer packed = BufferPool.shared().acquire(headerSize + segmentSize);
+            packed.position(headerSize).limit(headerSize + segmentSize - 1);      // 至少要省下一个字节
+            ByteBuffer reversed = cached != null ? cached.duplicate() : buffer.position(headerSize);
+            int n = Codec.compress(codec, reversed, packed);
+            if (n >= 0) {
+                BufferPool.shared().release(buffer);
+                buffer = packed;
+                buffer.limit(headerSize + n);
+                length = n;
+                compressed = true;
+                cached = null;
+            } else {
+                BufferPool.shared().release(packed);
+            }
+        }
+        if (cached != null) {
+            BufferPool.shared().release(buffer);
+            buffer = ByteBuffer.allocate(headerSize);
+            frame = new ByteBuffer[]{buffer, cached};
+        }
+        buffer.position(0);
+        Protocol.putHeader(buffer, version, codec, reverseTcpServer._serverToClient, length, seq, segmentSize);
+        buffer.position(0);
+    }
+
+    @Override
+    boolean writeTo(SocketChannel client) throws IOException {
+        if (frame == null) return super.writeTo(client);
+        client.write(frame);
+        return !frame[1].hasRemaining();
+    }
+
+    @Override
+    long payload() {
+        return segmentSize;
+    }
+}
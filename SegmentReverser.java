@@ -0,0 +1,97 @@
+import java.nio.ByteBuffer;
+
+// 分块反转：直接在缓冲区上原地操作，不经过 String/StringBuilder，也不做字符集编解码
+//
+// MODE_UTF8：按UTF-8码点反转，多字节字符的字节顺序保持不变；不完整或非法的字节按单个字节处理，
+//            所以结果长度总是等于输入长度（客户端按镜像偏移落盘依赖这一点）
+// MODE_BYTES：纯字节反转，用于二进制文件
+//
+// 被分块边界切断的码点：客户端分块时把切点挪到码点起始处（见 reverseTcpClient.splitFileData），
+// 残缺的字节并入相邻分块，服务器这边看到的每个分块都是完整码点
+public final class SegmentReverser {
+    public static final int MODE_UTF8 = 0;
+    public static final int MODE_BYTES = 1;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private SegmentReverser() {
+    }
+
+    public static int parseMode(String mode) {
+        switch (mode) {
+            case "utf8": return MODE_UTF8;
+            case "bytes": return MODE_BYTES;
+            default: throw new IllegalArgumentException("Unknown reverse mode: " + mode);
+        }
+    }
+
+    // 反转 buffer 的 [from, to)，不改变 position/limit
+    public static void reverse(ByteBuffer buffer, int from, int to, int mode) {
+        reverseBytes(buffer, from, to);
+        if (mode == MODE_UTF8) {
+            restoreCodePoints(buffer, from, to);
+        }
+    }
+
+    public static void reverse(ByteBuffer buffer, int mode) {
+        reverse(buffer, buffer.position(), buffer.limit(), mode);
+    }
+
+    // 两头各取8字节，字节序翻转后交换，剩下不足16字节的逐字节交换
+    static void reverseBytes(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        int j = to;
+        while (j - i >= 16) {
+            long head = buffer.getLong(i);
+            long tail = buffer.getLong(j - 8);
+            buffer.putLong(i, Long.reverseBytes(tail));
+            buffer.putLong(j - 8, Long.reverseBytes(head));
+            i += 8;
+            j -= 8;
+        }
+        while (j - i >= 2) {
+            byte head = buffer.get(i);
+            buffer.put(i++, buffer.get(--j));
+            buffer.put(j, head);
+        }
+    }
+
+    // 整体反转后，每个多字节码点变成了 续字节...首字节，这里把它们再翻回来
+    static void restoreCodePoints(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to) {
+            if (to - i >= 8 && (buffer.getLong(i) & HIGH_BITS) == 0) {     // 8个ASCII一起跳过
+                i += 8;
+                continue;
+            }
+            byte b = buffer.get(i);
+            if (!isContinuation(b)) {                                   // ASCII或首字节，原样保留
+                i++;
+                continue;
+            }
+            int continuation = 1;                                       // 数出连续的续字节，最多3个
+            while (continuation < 3 && i + continuation < to && isContinuation(buffer.get(i + continuation))) {
+                continuation++;
+            }
+            int lead = i + continuation;
+            if (lead < to && sequenceLength(buffer.get(lead)) == continuation + 1) {
+                reverseBytes(buffer, i, lead + 1);
+                i = lead + 1;
+            } else {
+                i++;                                                    // 残缺的续字节当作单字节
+            }
+        }
+    }
+
+    // 首字节声明的码点长度，不是合法首字节返回-1
+    private static int sequenceLength(byte lead) {
+        if ((lead & 0xE0) == 0xC0) return 2;
+        if ((lead & 0xF0) == 0xE0) return 3;
+        if ((lead & 0xF8) == 0xF0) return 4;
+        return -1;
+    }
+
+    public static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
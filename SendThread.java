@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+// 发送类
+class SendThread extends Thread{
+    private final SocketChannel client;
+    private final List<reverseTcpClient.FileSegment> segments;
+    private final ByteBuffer headerBuffer;
+    private final ByteBuffer buffer;
+    private final String filePath;
+    private final int version;
+    private final Semaphore inFlight;       // 在途窗口，收到应答时由接收线程归还；null表示不限
+    private final int codec;
+    private final int compressThreshold;
+    private final SegmentFeed feed;         // 自适应分块、多文件会话时边产生边发，分块追加到segments；否则为null
+    private final SegmentBatch batch;       // 协商了批量帧时攒小分块，否则为null
+    private boolean permit;                 // 已经拿到还没用掉的窗口名额，攒着的批量帧占着它
+
+    public SendThread(SocketChannel client, String filePath, List<reverseTcpClient.FileSegment> segments){
+        this(client, filePath, segments, Protocol.VERSION_1, null, Codec.NONE, Codec.DEFAULT_THRESHOLD, null, null);
+    }
+
+    public SendThread(SocketChannel client, String filePath, List<reverseTcpClient.FileSegment> segments, int version, Semaphore inFlight,
+                      int codec, int compressThreshold, SegmentFeed feed, SegmentBatch batch){
+        this.client = client;
+        this.filePath = filePath;
+        this.segments = segments;
+        this.version = version;
+        this.inFlight = inFlight;
+        this.codec = codec;
+        this.compressThreshold = compressThreshold;
+        this.feed = feed;
+        this.batch = batch;
+        headerBuffer = ByteBuffer.allocate(Protocol.headerSize(version, codec));
+        buffer = BufferPool.shared().acquire(BufferPool.chunkSize);
+    }
+
+    @Override
+    public void run(){
+        // 源文件只打开一次，所有分块共用；多文件会话没有filePath，分块自己带着源文件
+        try (FileChannel fileChannel = filePath != null ? FileChannel.open(Paths.get(filePath), StandardOpenOption.READ) : null) {
+            for(int seq = 0; feed != null || seq < segments.size(); seq++){
+                takePermit();                                   // 窗口满了就等应答
+                reverseTcpClient.FileSegment segment;
+                if (feed != null) {
+                    segment = feed.next(this);                  // 没有了返回null
+                    if (segment == null) break;
+                    segments.add(segment);
+                    takePermit();                               // 控制帧前面可能先把攒着的批量帧发出去了
+                } else {
+                    segment = segments.get(seq);
+                }
+                FileChannel source = segment.source != null ? segment.source : fileChannel;
+                if (batch != null && !compressible(segment) && batch.fits(segment.size)) {
+                    if (!batch.hasRoom(segment.size)) {
+                        flushBatch();
+                        takePermit();
+                    }
+                    batch.add(source, segment, seq);
+                    if (batch.isFull()) flushBatch();
+                    continue;
+                }
+                if (batch != null && batch.count > 0) {         // 序号必须连续，先把攒着的发出去
+                    flushBatch();
+                    takePermit();
+                }
+                sendMessage(client, reverseTcpClient._clientToServer, source, segment, seq);
+                permit = false;
+            }
+            flushBatch();
+        } catch(IOException e){
+            e.printStackTrace();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                client.shutdownOutput(); // 关闭输出流
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            BufferPool.shared().release(buffer);
+            if (batch != null) batch.close();
+        }
+    }
+
+    private void takePermit() throws InterruptedException {
+        if (!permit && inFlight != null) inFlight.acquire();
+        permit = true;
+    }
+
+    private boolean compressible(reverseTcpClient.FileSegment segment) {
+        return codec != Codec.NONE && segment.size >= compressThreshold && segment.size <= Codec.MAX_BLOCK;
+    }
+
+    // 攒着的分块整帧发出，用掉手上的窗口名额；只攒到一块就按普通数据帧发，省掉长度前缀
+    private void flushBatch() throws IOException {
+        if (batch == null || batch.count == 0) return;
+        ByteBuffer body = batch.body.flip();
+        byte messageType = Protocol.BATCH;
+        if (batch.count == 1) {
+            body.position(Protocol.BATCH_ENTRY_HEADER);
+            messageType = reverseTcpClient._clientToServer;
+        }
+        headerBuffer.clear();
+        Protocol.putHeader(headerBuffer, version, codec, messageType, body.remaining(), batch.firstSeq, body.remaining());
+        headerBuffer.flip();
+        ByteBuffer[] frame = {headerBuffer, body};
+        while (body.hasRemaining()) {
+            client.write(frame);
+        }
+        batch.clear();
+        permit = false;
+    }
+
+    // 没有正文的控制帧，seq 填 id（多文件会话的 BEGIN_FILE / END_FILE）
+    // 控制帧要排在它前面的分块后面，攒着的批量帧先发出去
+    void sendControl(byte messageType, int id) throws IOException {
+        flushBatch();
+        headerBuffer.clear();
+        Protocol.putHeader(headerBuffer, version, codec, messageType, 0, id, 0);
+        headerBuffer.flip();
+        while (headerBuffer.hasRemaining()) {
+            client.write(headerBuffer);
+        }
+    }
+
+    public void sendMessage(SocketChannel client, byte messageType, FileChannel fileChannel, reverseTcpClient.FileSegment segment, int seq) throws IOException{
+        if (compressible(segment)) {
+            sendCompressed(client, messageType, fileChannel, segment, seq);
+            return;
+        }
+        // 头部字段 type（2B） + size（4B），v2再加 seq（4B），协商了压缩再加原文长度（4B）
+        headerBuffer.clear();
+        Protocol.putHeader(headerBuffer, version, codec, messageType, segment.size, seq, segment.size);
+        headerBuffer.flip();
+
+        if (segment.size <= buffer.capacity()) {
+            // 小分块：正文读进缓冲，和头部一起聚集写，一次系统调用发出去
+            buffer.clear().limit(segment.size);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, segment.position + buffer.position()) == -1) {
+                    throw new IOException("Unexpected end of file at " + (segment.position + buffer.position()));
+                }
+            }
+            buffer.flip();
+            ByteBuffer[] frame = {headerBuffer, buffer};
+            while (buffer.hasRemaining()) {     // 检查的是position和limit之间的距离
+                client.write(frame);
+            }
+            return;
+        }
+
+        while (headerBuffer.hasRemaining()) {
+            client.write(headerBuffer);
+        }
+        // 大分块：transferTo 由内核直接把文件内容拷到套接字（sendfile），不经过用户态缓冲
+        long sent = 0;
+        while (sent < segment.size) {
+            sent += fileChannel.transferTo(segment.position + sent, segment.size - sent, client);
+        }
+    }
+
+    // 整块读进内存压缩，压小了发压缩后的正文，否则发原文
+    private void sendCompressed(SocketChannel client, byte messageType, FileChannel fileChannel, reverseTcpClient.FileSegment segment, int seq) throws IOException {
+        ByteBuffer raw = BufferPool.shared().acquire(segment.size);
+        ByteBuffer packed = BufferPool.shared().acquire(segment.size);
+        try {
+            while (raw.hasRemaining()) {
+                if (fileChannel.read(raw, segment.position + raw.position()) == -1) {
+                    throw new IOException("Unexpected end of file at " + (segment.position + raw.position()));
+                }
+            }
+            raw.flip();
+            packed.limit(segment.size - 1);
+            ByteBuffer body = raw;
+            if (Codec.compress(codec, raw, packed) >= 0) {
+                body = packed.flip();
+            } else {
+                raw.rewind();
+            }
+            headerBuffer.clear();
+            Protocol.putHeader(headerBuffer, version, codec, messageType, body.remaining(), seq, segment.size);
+            headerBuffer.flip();
+            ByteBuffer[] frame = {headerBuffer, body};
+            while (body.hasRemaining()) {
+                client.write(frame);
+            }
+        } finally {
+            BufferPool.shared().release(raw);
+            BufferPool.shared().release(packed);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// 服务器配置，命令行解析后传给各个事件循环，运行期间只读
+public class ServerConfig {
+    public int port = 12345;
+    public String engine = "nio";                                             // nio：Selector事件循环；threads：每个连接一个（虚拟）线程
+    public int workers = Runtime.getRuntime().availableProcessors();           // 事件循环个数，默认每个核一个
+    public int maxWindow = 64;                                                 // v2协议下每个连接最多在途的分块数
+    public int streamThreshold = 8 << 20;                                      // 超过这个大小的分块落到临时文件，分段反转后流式发回
+    public long maxSegmentSize = 256L << 20;                                   // 单个分块的硬上限，超过直接断开；超过 streamThreshold 的分块都落盘，这个上限管的是一帧能占多少磁盘
+    public long maxConnectionMemory = 64L << 20;                               // 单个连接在内存里积压的分块字节数上限，超过的分块改走临时文件
+    public long memoryBudget = 512L << 20;                                     // 所有连接合计的内存预算，快用完时停读、暂停accept，0表示不限
+    public int maxConnections = 10000;                                         // 同时服务的连接数上限，到了就暂停accept，0表示不限
+    public Path spoolDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    public int offloadThreshold = 1 << 20;                                     // 不小于这个大小的分块交给线程池反转，小的就地反转
+    public int reverseThreads = Runtime.getRuntime().availableProcessors();    // 反转线程池大小
+    public int reverseQueue = 256;                                             // 反转线程池的排队上限，满了就回到事件循环就地反转
+    public boolean compress = true;                                            // 客户端报了压缩算法就选一个用
+    public int compressThreshold = Codec.DEFAULT_THRESHOLD;                    // 小于这个大小的应答不压缩
+    public long cacheSize;                                                     // 反转结果缓存的堆外内存预算（字节），0表示不缓存
+    public int cacheMaxEntry = 1 << 20;                                        // 超过这个大小的分块不进缓存
+    public boolean debug;                                                      // 逐个分块打印收到的内容，压测时别开
+    public int metricsInterval = 10;                                           // 每隔多少秒打印一行运行指标，0表示不打印
+    public boolean batch = true;                                               // 客户端报了 OPT_BATCH 就接受批量帧
+    public int idleTimeout = 60;                                               // 连接这么多秒没有读写就关掉，回收连接状态，0表示不限
+
+    static final String USAGE = "可选参数[--port 端口(默认12345)] [--workers 事件循环个数(默认CPU核数)] [--window 每连接最大在途分块数(默认64)]\n"
+            + "        [--stream-threshold 流式处理的分块大小阈值(字节,默认8MiB)] [--max-segment 单个分块上限(字节,默认256MiB)]\n"
+            + "        [--max-connection-memory 每连接内存上限(字节,默认64MiB)] [--spool-dir 临时文件目录]\n"
+            + "        [--memory-budget 全局内存预算(字节,默认512MiB,0不限)] [--max-connections 连接数上限(默认10000,0不限)]\n"
+            + "        [--offload-threshold 交给线程池反转的分块大小(字节,默认1MiB)] [--reverse-threads 反转线程数(默认CPU核数)] [--reverse-queue 反转排队上限(默认256)]\n"
+            + "        [--no-compress 不接受压缩] [--compress-threshold 压缩的分块大小下限(字节,默认512)] [--no-batch 不接受批量帧]\n"
+            + "        [--cache-size 反转结果缓存预算(字节,默认0不缓存)] [--cache-max-entry 进缓存的分块大小上限(字节,默认1MiB)]\n"
+            + "        [--engine nio|threads 执行模型(默认nio)] [--metrics-interval 指标打印间隔(秒,默认10,0不打印)] [--debug 逐个分块打印日志]\n"
+            + "        [--idle-timeout 空闲连接超时(秒,默认60,0不限)]";
+
+    // 解析命令行，参数不认识返回null
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": config.port = Integer.parseInt(args[++i]); break;
+                case "--engine": config.engine = args[++i]; break;
+                case "--workers": config.workers = Integer.parseInt(args[++i]); break;
+                case "--window": config.maxWindow = Integer.parseInt(args[++i]); break;
+                case "--stream-threshold": config.streamThreshold = Integer.parseInt(args[++i]); break;
+                case "--max-segment": config.maxSegmentSize = Long.parseLong(args[++i]); break;
+                case "--max-connection-memory": config.maxConnectionMemory = Long.parseLong(args[++i]); break;
+                case "--memory-budget": config.memoryBudget = Long.parseLong(args[++i]); break;
+                case "--max-connections": config.maxConnections = Integer.parseInt(args[++i]); break;
+                case "--spool-dir": config.spoolDir = Paths.get(args[++i]); break;
+                case "--offload-threshold": config.offloadThreshold = Integer.parseInt(args[++i]); break;
+                case "--reverse-threads": config.reverseThreads = Integer.parseInt(args[++i]); break;
+                case "--reverse-queue": config.reverseQueue = Integer.parseInt(args[++i]); break;
+                case "--metrics-interval": config.metricsInterval = Integer.parseInt(args[++i]); break;
+                case "--no-compress": config.compress = false; break;
+                case "--no-batch": config.batch = false; break;
+                case "--compress-threshold": config.compressThreshold = Integer.parseInt(args[++i]); break;
+                case "--cache-size": config.cacheSize = Long.parseLong(args[++i]); break;
+                case "--cache-max-entry": config.cacheMaxEntry = Integer.parseInt(args[++i]); break;
+                case "--idle-timeout": config.idleTimeout = Integer.parseInt(args[++i]); break;
+                case "--debug": config.debug = true; break;
+                default: return null;
+            }
+        }
+        if (!config.engine.equals("nio") && !config.engine.equals("threads")) return null;
+        if (config.workers < 1) throw new IllegalArgumentException("workers must be >= 1");
+        if (config.maxWindow < 1) throw new IllegalArgumentException("window must be >= 1");
+        if (config.maxSegmentSize < 1) throw new IllegalArgumentException("max segment must be >= 1");
+        if (config.compressThreshold < 1) throw new IllegalArgumentException("compress threshold must be >= 1");
+        if (config.cacheSize < 0 || config.cacheMaxEntry < 1) throw new IllegalArgumentException("cache size must be >= 0");
+        if (config.memoryBudget < 0 || config.maxConnections < 0) throw new IllegalArgumentException("memory budget and max connections must be >= 0");
+        if (config.reverseThreads < 1 || config.reverseQueue < 1) throw new IllegalArgumentException("reverse pool must be >= 1");
+        return config;
+    }
+}
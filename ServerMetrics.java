@@ -0,0 +1,302 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// 服务器运行指标：计数器用 LongAdder，延迟用 LatencyHistogram，各事件循环线程直接记录，不加锁
+// 通过JMX暴露，也可以按固定间隔打印一行文本
+public class ServerMetrics implements ServerMetricsMBean {
+    final LongAdder segmentsIn = new LongAdder();
+    final LongAdder segmentsOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();                  // 收到的分块字节数，两个方向都按压缩前、不含头部记
+    final LongAdder bytesOut = new LongAdder();                 // 发回的分块字节数
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder acceptedConnections = new LongAdder();
+    final LongAdder backlogFrames = new LongAdder();            // 所有连接排队待发的应答帧
+    final AtomicLong maxBacklogFrames = new AtomicLong();       // 单个连接出现过的最大积压
+    final LongAdder spooledSegments = new LongAdder();
+    final LongAdder offloadedSegments = new LongAdder();
+    final LongAdder offloadRejected = new LongAdder();
+    final LongAdder compressedIn = new LongAdder();             // 收到的压缩分块
+    final LongAdder compressedOut = new LongAdder();            // 压缩后发出的应答
+    final LongAdder resumedSessions = new LongAdder();          // 带 OPT_RESUME 的续传握手
+    final LongAdder filesCompleted = new LongAdder();           // 多文件会话里传完的文件
+    final LongAdder idleClosed = new LongAdder();               // 空闲超时被关掉的连接
+    final LongAdder batchesIn = new LongAdder();                // 收到的批量帧
+    final LongAdder batchedSegments = new LongAdder();          // 批量帧里带来的分块
+    final AtomicLong memoryInUse = new AtomicLong();            // 积压的应答记在全局预算上的字节数，见 AdmissionControl
+    final AtomicLong memoryReading = new AtomicLong();          // 正在读的分块正文记在全局预算上的字节数
+    final LongAdder pausedConnections = new LongAdder();        // 当前因为内存预算停读的连接
+    final LongAdder readPauses = new LongAdder();               // 停读的次数
+    final LongAdder deferredAccepts = new LongAdder();          // 暂停accept的次数
+    final LongAdder cacheHits = new LongAdder();                // 反转结果缓存命中，见 ReversalCache
+    final LongAdder cacheMisses = new LongAdder();
+    final LongAdder cacheEvictions = new LongAdder();
+    final LongAdder cacheBytesSaved = new LongAdder();          // 命中省掉的反转字节数
+    final AtomicLong cacheBytes = new AtomicLong();             // 缓存当前占用的堆外字节数
+    final LatencyHistogram segmentLatency = new LatencyHistogram();    // 分块收齐到应答写完，纳秒
+    final LatencyHistogram loopTime = new LatencyHistogram();          // 事件循环每轮处理耗时，纳秒
+
+    private long lastSegmentsOut;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private LatencyHistogram lastSegmentLatency = new LatencyHistogram();
+    private LatencyHistogram lastLoopTime = new LatencyHistogram();
+
+    void backlog(int connectionBacklog) {
+        if (connectionBacklog > maxBacklogFrames.get()) {
+            maxBacklogFrames.accumulateAndGet(connectionBacklog, Math::max);
+        }
+    }
+
+    // 注册到平台MBeanServer
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("reverseTcpServer:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // 每隔 seconds 秒打印一行，速率和延迟分位数都只算这段时间的，其余计数是累计值
+    public void startReporter(int seconds) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            long out = segmentsOut.sum();
+            long in = bytesIn.sum();
+            long sent = bytesOut.sum();
+            LatencyHistogram latency = segmentLatency.snapshot();
+            LatencyHistogram loop = loopTime.snapshot();
+            System.out.printf("[metrics] %.1f seg/s, in %.2f MB/s, out %.2f MB/s | %s%n",
+                    (out - lastSegmentsOut) / (double) seconds,
+                    (in - lastBytesIn) / 1e6 / seconds,
+                    (sent - lastBytesOut) / 1e6 / seconds,
+                    dump(latency.since(lastSegmentLatency), loop.since(lastLoopTime)));
+            lastSegmentsOut = out;
+            lastBytesIn = in;
+            lastBytesOut = sent;
+            lastSegmentLatency = latency;
+            lastLoopTime = loop;
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    // 延迟分位数是启动以来累计的
+    @Override
+    public String dump() {
+        return dump(segmentLatency, loopTime);
+    }
+
+    private String dump(LatencyHistogram latency, LatencyHistogram loop) {
+        return "segments in/out " + getSegmentsIn() + "/" + getSegmentsOut()
+                + ", bytes in/out " + getBytesIn() + "/" + getBytesOut()
+                + ", connections " + getActiveConnections() + " (accepted " + getAcceptedConnections() + ")"
+                + ", backlog " + getBacklogFrames() + " (max " + getMaxBacklogFrames() + ")"
+                + ", compressed in/out " + getCompressedSegmentsIn() + "/" + getCompressedSegmentsOut()
+                + ", resumed " + getResumedSessions() + ", files " + getFilesCompleted() + ", idle closed " + getIdleClosed()
+                + ", batches " + getBatchesIn() + " (" + getBatchedSegments() + " segments)"
+                + ", memory " + getMemoryInUse() + " (reading " + getMemoryReading() + "), paused " + getPausedConnections() + " (pauses " + getReadPauses() + ")"
+                + ", deferred accepts " + getDeferredAccepts()
+                + ", cache hits/misses " + getCacheHits() + "/" + getCacheMisses() + String.format(" (%.1f%%)", getCacheHitRate() * 100)
+                + " evictions " + getCacheEvictions() + " saved " + getCacheBytesSaved() + " bytes " + getCacheBytes()
+                + ", spooled " + getSpooledSegments() + ", offloaded " + getOffloadedSegments() + " (rejected " + getOffloadRejected() + ")"
+                + ", latency us p50/p99/p999/max " + latency.percentile(0.5) / 1000 + "/" + latency.percentile(0.99) / 1000
+                + "/" + latency.percentile(0.999) / 1000 + "/" + latency.max() / 1000
+                + ", loop us p99/max " + loop.percentile(0.99) / 1000 + "/" + loop.max() / 1000
+                + ", pool hits/misses " + getBufferPoolHits() + "/" + getBufferPoolMisses();
+    }
+
+    @Override
+    public long getSegmentsIn() {
+        return segmentsIn.sum();
+    }
+
+    @Override
+    public long getSegmentsOut() {
+        return segmentsOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getBacklogFrames() {
+        return backlogFrames.sum();
+    }
+
+    @Override
+    public long getMaxBacklogFrames() {
+        return maxBacklogFrames.get();
+    }
+
+    @Override
+    public long getSpooledSegments() {
+        return spooledSegments.sum();
+    }
+
+    @Override
+    public long getOffloadedSegments() {
+        return offloadedSegments.sum();
+    }
+
+    @Override
+    public long getOffloadRejected() {
+        return offloadRejected.sum();
+    }
+
+    @Override
+    public long getCompressedSegmentsIn() {
+        return compressedIn.sum();
+    }
+
+    @Override
+    public long getCompressedSegmentsOut() {
+        return compressedOut.sum();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    @Override
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+
+    @Override
+    public long getIdleClosed() {
+        return idleClosed.sum();
+    }
+
+    @Override
+    public long getBatchesIn() {
+        return batchesIn.sum();
+    }
+
+    @Override
+    public long getBatchedSegments() {
+        return batchedSegments.sum();
+    }
+
+    @Override
+    public long getMemoryInUse() {
+        return memoryInUse.get();
+    }
+
+    @Override
+    public long getMemoryReading() {
+        return memoryReading.get();
+    }
+
+    @Override
+    public long getPausedConnections() {
+        return pausedConnections.sum();
+    }
+
+    @Override
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    @Override
+    public long getDeferredAccepts() {
+        return deferredAccepts.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    @Override
+    public long getCacheBytesSaved() {
+        return cacheBytesSaved.sum();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return cacheBytes.get();
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return segmentLatency.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return segmentLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return segmentLatency.percentile(0.999) / 1000;
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return segmentLatency.max() / 1000;
+    }
+
+    @Override
+    public long getLoopTimeP99Micros() {
+        return loopTime.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getLoopTimeMaxMicros() {
+        return loopTime.max() / 1000;
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return BufferPool.shared().hits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.shared().misses();
+    }
+}
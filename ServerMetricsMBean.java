@@ -0,0 +1,78 @@
+// ServerMetrics 的JMX接口，jconsole/jmc 里在 reverseTcpServer:type=ServerMetrics 下查看
+public interface ServerMetricsMBean {
+    long getSegmentsIn();
+
+    long getSegmentsOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getBacklogFrames();
+
+    long getMaxBacklogFrames();
+
+    long getSpooledSegments();
+
+    long getOffloadedSegments();
+
+    long getOffloadRejected();
+
+    long getCompressedSegmentsIn();
+
+    long getCompressedSegmentsOut();
+
+    long getResumedSessions();
+
+    long getFilesCompleted();
+
+    long getIdleClosed();
+
+    long getBatchesIn();
+
+    long getBatchedSegments();
+
+    long getMemoryInUse();
+
+    long getMemoryReading();
+
+    long getPausedConnections();
+
+    long getReadPauses();
+
+    long getDeferredAccepts();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    long getCacheEvictions();
+
+    long getCacheBytesSaved();
+
+    long getCacheBytes();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    long getLoopTimeP99Micros();
+
+    long getLoopTimeMaxMicros();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    String dump();
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+// 落盘的大分块：从文件尾部往前一块块读出，原地反转后发送，发完删掉临时文件
+// utf8模式下每块的起点往后挪到码点起始处，被切开的字符留给下一块（更靠前的那块）
+class SpooledReply extends Outbound {
+    private final FileChannel spool;
+    private final long size;
+    private final int mode;
+    private final ByteBuffer header;
+    private ByteBuffer chunk;
+    private long end;                       // 还没发出去的部分是 [0, end)
+
+    SpooledReply(FileChannel spool, long size, int mode, ByteBuffer header) {
+        this.spool = spool;
+        this.mode = mode;
+        this.header = header;
+        this.size = size;
+        this.end = size;
+    }
+
+    @Override
+    boolean writeTo(SocketChannel client) throws IOException {
+        if (header.hasRemaining()) {
+            client.write(header);
+            if (header.hasRemaining()) return false;
+        }
+        while (true) {
+            if (chunk == null || !chunk.hasRemaining()) {
+                if (end == 0) return true;
+                nextChunk();
+            }
+            client.write(chunk);
+            if (chunk.hasRemaining()) return false;
+        }
+    }
+
+    private void nextChunk() throws IOException {
+        if (chunk == null) chunk = BufferPool.shared().acquire(BufferPool.chunkSize);
+        long start = Math.max(0, end - chunk.capacity());
+        chunk.clear().limit((int) (end - start));
+        while (chunk.hasRemaining()) {
+            if (spool.read(chunk, start + chunk.position()) == -1) throw new IOException("Spool file truncated");
+        }
+        int skip = 0;
+        if (mode == SegmentReverser.MODE_UTF8 && start > 0) {
+            while (skip < 3 && skip < chunk.limit() - 1 && SegmentReverser.isContinuation(chunk.get(skip))) skip++;
+        }
+        SegmentReverser.reverse(chunk, skip, chunk.limit(), mode);
+        chunk.position(skip);
+        end = start + skip;
+    }
+
+    @Override
+    long memory() {
+        return 0;
+    }
+
+    @Override
+    long payload() {
+        return size;
+    }
+
+    @Override
+    void release() {
+        BufferPool.shared().release(chunk);
+        chunk = null;
+        try {
+            spool.close();                  // DELETE_ON_CLOSE，关掉即删除
+        } catch (IOException e) {
+            System.err.println("Error closing spool file: " + e.getMessage());
+        }
+    }
+}
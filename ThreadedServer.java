@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 另一种执行模型：每个连接一个线程，阻塞地读一帧、反转、写回，逻辑就是一个顺序循环
+// 帧解析、握手协商、反转和应答都和 EventLoop 共用（FrameDecoder / Connection / Outbound），只有调度方式不同
+// 有虚拟线程（Java 21+）就用虚拟线程，否则退回平台线程，连接数多时线程栈会占不少内存
+// 阻塞读没有超时，空闲连接由一个回收线程每秒检查一次，直接关掉通道让阻塞的读写抛异常退出
+// 准入控制和 EventLoop 共用 AdmissionControl：应答是同步写完的，连接之间没有轻重之分，超过高水位时所有连接读下一帧之前都等着
+public class ThreadedServer {
+    private final ServerConfig config;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Map<Connection, SocketChannel> live = new ConcurrentHashMap<>();
+    private ReversalCache cache;
+    private AdmissionControl admission;
+
+    public ThreadedServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void startServer(int port) throws IOException {
+        metrics.register();
+        if (config.metricsInterval > 0) metrics.startReporter(config.metricsInterval);
+        if (config.cacheSize > 0) cache = new ReversalCache(config.cacheSize, config.cacheMaxEntry, metrics);
+        admission = new AdmissionControl(config, metrics);
+        ExecutorService sessions = newSessionExecutor();
+        if (config.idleTimeout > 0) startReaper(TimeUnit.SECONDS.toNanos(config.idleTimeout));
+
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port), 1024);           // 主线程阻塞accept，积压队列放大一些
+        System.out.println("Server is listening on port " + port + " with " + describe(sessions));
+        while (true) {
+            awaitAdmission();
+            SocketChannel client = serverSocket.accept();
+            metrics.acceptedConnections.increment();
+            metrics.activeConnections.increment();
+            if (config.debug) System.out.println("Accepted connection from " + client);
+            sessions.execute(() -> serve(client));
+        }
+    }
+
+    // 一个连接的完整会话：通道保持阻塞模式，decode 读不满一帧就接着读
+    private void serve(SocketChannel client) {
+        Connection connection = new Connection(config, metrics, cache, admission);
+        live.put(connection, client);
+        try (client) {
+            FrameDecoder decoder = connection.decoder;
+            while (true) {
+                int status = decoder.decode(client, Math.min(config.maxConnectionMemory, admission.available()));
+                connection.lastActive = System.nanoTime();
+                if (status == FrameDecoder.EOF) break;
+                if (status == FrameDecoder.INCOMPLETE) continue;
+
+                byte messageType = decoder.messageType;
+                if (messageType == reverseTcpServer._initialization) {
+                    ByteBuffer agreement = connection.agree(config);
+                    if (config.debug) System.out.println("successfully received initialization( " + client.getRemoteAddress() + " ) N: " + connection.numberOfSegments
+                            + " version: " + connection.version + " window: " + connection.window);
+                    connection.enqueue(new BufferedReply(agreement));
+                } else if (messageType == Protocol.BEGIN_FILE) {
+                    connection.beginFile();
+                    if (config.debug) System.out.println("Begin file " + connection.fileId + " from " + client.getRemoteAddress());
+                } else if (messageType == Protocol.END_FILE) {
+                    if (config.debug) System.out.println("End file " + connection.fileId + " from " + client.getRemoteAddress() + ": " + connection.fileSegments + " segments");
+                    connection.enqueue(new BufferedReply(connection.endFile()));
+                } else if (messageType == Protocol.BATCH) {
+                    BatchReply reply = connection.takeBatch();
+                    if (config.debug) System.out.println("Received batch from client: " + client.getRemoteAddress() + " | segments: " + reply.segments() + " | " + reply.segmentBytes + " Byte.");
+                    long receivedAt = System.nanoTime();
+                    reply.reverse();
+                    connection.enqueue(reply, receivedAt);
+                } else if (messageType == reverseTcpServer._clientToServer && decoder.spool != null) {
+                    if (config.debug) System.out.println("Received from client: " + client.getRemoteAddress() + " | segmentSize: " + decoder.length + " Byte (spooled).");
+                    connection.enqueue(connection.takeSpooled(), System.nanoTime());
+                } else if (messageType == reverseTcpServer._clientToServer) {
+                    SegmentReply reply = connection.takeSegment();
+                    if (config.debug) System.out.println("Received from client: " + client.getRemoteAddress() + " | segmentSize: " + reply.segmentSize + " Byte.");
+                    long receivedAt = System.nanoTime();
+                    reply.reverse();
+                    connection.enqueue(reply, receivedAt);
+                } else {
+                    System.out.println("意料之外: " + messageType);
+                    break;                                  // 帧边界已经错乱，无法继续
+                }
+                flush(client, connection);
+                if (admission.aboveHigh()) throttle(connection);
+            }
+            if (config.debug) System.out.println("Client closed | " + BufferPool.shared().stats());
+        } catch (IOException e) {
+            System.err.println("Error handling client: " + e.getMessage());
+        } finally {
+            live.remove(connection);
+            connection.release();
+            metrics.activeConnections.decrement();
+        }
+    }
+
+    // 连接数或内存到了上限就先不accept，新连接留在内核的积压队列里
+    private void awaitAdmission() {
+        if (admission.admitsConnection()) return;
+        metrics.deferredAccepts.increment();
+        if (config.debug) System.out.println("Deferring accepts: " + metrics.activeConnections.sum() + " connections, " + metrics.memoryInUse.get() + " bytes in use");
+        while (!admission.admitsConnection() && !Thread.currentThread().isInterrupted()) {
+            sleep();
+        }
+    }
+
+    // 积压超过高水位：这个连接的应答已经写完，不占预算，等积压降到低水位以下再读下一帧；等待不算空闲
+    private void throttle(Connection connection) {
+        metrics.pausedConnections.increment();
+        metrics.readPauses.increment();
+        try {
+            while (!admission.belowLow() && !Thread.currentThread().isInterrupted()) {
+                sleep();
+                connection.lastActive = System.nanoTime();
+            }
+        } finally {
+            metrics.pausedConnections.decrement();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startReaper(long idleTimeout) {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            live.forEach((connection, client) -> {
+                if (now - connection.lastActive <= idleTimeout) return;
+                if (config.debug) System.out.println("Closing idle connection " + client);
+                metrics.idleClosed.increment();
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing client channel: " + e.getMessage());
+                }
+            });
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // 阻塞模式下 writeTo 会一直写到整帧写完
+    private static void flush(SocketChannel client, Connection connection) throws IOException {
+        Outbound reply;
+        while ((reply = connection.outbound.peek()) != null) {
+            while (!reply.writeTo(client)) {
+                Thread.onSpinWait();
+            }
+            connection.outbound.poll();
+            connection.sent(reply);
+            connection.lastActive = System.nanoTime();
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor 是 Java 21 的API，这里按反射取，编译和运行都不要求21
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger sessionId = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "session-" + sessionId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static String describe(ExecutorService sessions) {
+        return sessions.getClass().getSimpleName().contains("ThreadPerTask") ? "virtual threads" : "platform threads (virtual threads need Java 21+)";
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// 帧头部的编码/解码：type(2B) + length(4B)，v2再加 seq(4B)
+// 一次调用处理 FRAMES 个头部，结果按单个头部折算；heap/direct 对应堆缓冲和池化的直接缓冲
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"1", "2"})
+    int version;
+
+    @Param({"heap", "direct"})
+    String buffer;
+
+    private int[] lengths;
+    private ByteBuffer frames;          // FRAMES 个连续的头部
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lengths = new int[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            lengths[i] = random.nextInt(1 << 20);
+        }
+        int capacity = Protocol.headerSize(version) * FRAMES;
+        frames = buffer.equals("direct") ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        for (int i = 0; i < FRAMES; i++) {
+            Protocol.putHeader(frames, version, reverseTcpServer._clientToServer, lengths[i], i);
+        }
+        frames.flip();
+    }
+
+    // 改造前客户端的写法：每帧新分配一个头部缓冲
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void encodeAllocating(Blackhole blackhole) {
+        for (int i = 0; i < FRAMES; i++) {
+            ByteBuffer header = ByteBuffer.allocate(Protocol.headerSize(version));
+            Protocol.putHeader(header, version, reverseTcpServer._clientToServer, lengths[i], i);
+            header.flip();
+            blackhole.consume(header);
+        }
+    }
+
+    // 现在的写法：头部写进复用的缓冲
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ByteBuffer encodeReused() {
+        frames.clear();
+        for (int i = 0; i < FRAMES; i++) {
+            Protocol.putHeader(frames, version, reverseTcpServer._clientToServer, lengths[i], i);
+        }
+        frames.flip();
+        return frames;
+    }
+
+    // 和 FrameDecoder 读头部的方式一致
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() {
+        frames.rewind();
+        long checksum = 0;
+        boolean v2 = version >= Protocol.VERSION_2;
+        for (int i = 0; i < FRAMES; i++) {
+            short type = frames.getShort();
+            int length = frames.getInt();
+            int seq = v2 ? frames.getInt() : 0;
+            checksum += Protocol.messageTypeOf(type) + Protocol.versionOf(type) + length + seq;
+        }
+        return checksum;
+    }
+}
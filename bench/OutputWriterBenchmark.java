@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 拼装输出文件：旧的 insertDataAtFileHead（每个分块都把整个文件重写一遍，O(n²)）
+// 对比 ReversedFileWriter（预分配后按偏移定位写，O(n)，关闭时fsync一次）
+// 每次调用从空文件开始写满整个文件，所以用 SingleShotTime
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OutputWriterBenchmark {
+    @Param({"1048576", "8388608"})
+    int fileSize;
+
+    @Param({"4096", "65536"})
+    int segmentSize;
+
+    private byte[][] segments;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int count = (fileSize + segmentSize - 1) / segmentSize;
+        segments = new byte[count][];
+        byte[] text = ReverseBenchmark.sampleText(fileSize, false, 42);
+        for (int i = 0; i < count; i++) {
+            int from = i * segmentSize;
+            int size = Math.min(segmentSize, fileSize - from);
+            segments[i] = new byte[size];
+            System.arraycopy(text, from, segments[i], 0, size);
+        }
+        output = Files.createTempFile("output-bench", ".txt");
+    }
+
+    @Setup(Level.Invocation)
+    public void truncate() throws IOException {
+        Files.write(output, new byte[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(Path.of(output + ".tmp"));
+    }
+
+    @Benchmark
+    public void insertDataAtFileHead() throws IOException {
+        for (byte[] segment : segments) {
+            insertDataAtFileHead(output.toString(), segment);
+        }
+    }
+
+    @Benchmark
+    public void reversedFileWriter() throws IOException {
+        try (ReversedFileWriter writer = new ReversedFileWriter(output.toString(), fileSize)) {
+            long position = 0;
+            for (byte[] segment : segments) {
+                writer.write(position, ByteBuffer.wrap(segment));
+                position += segment.length;
+            }
+        }
+    }
+
+    // 改动前 ReceivedThread 的保存方式：每段都把整个文件复制一遍插到文件头，O(N²)，原样保留作对比
+    private static void insertDataAtFileHead(String filePath, byte[] segment) throws IOException{
+        File file = new File(filePath);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long originalLength = raf.length();
+
+        File tempFile = new File(filePath + ".tmp");
+        RandomAccessFile tempRaf = new RandomAccessFile(tempFile, "rw");
+        // 将待插入数据写入临时文件
+        tempRaf.write(segment);
+
+        raf.seek(0);
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = raf.read(buffer)) != -1) {
+            tempRaf.write(buffer, 0, bytesRead);
+        }
+
+        tempRaf.close();
+        raf.close();
+
+        if (!file.delete()) {
+            throw new IOException("Failed to delete the original file");
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Failed to rename the temporary file to the original file");
+        }
+    }
+}
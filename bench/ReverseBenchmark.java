@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 分块反转：旧的 String/StringBuilder 路径 对比 SegmentReverser 原地反转
+// 原地反转每次调用都把缓冲翻一遍，来回翻不影响测量
+// 大小从64B到64MB，64MB时 StringBuilder 路径要好几倍的堆，所以分叉的JVM给2G
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ReverseBenchmark {
+    @Param({"64", "4096", "65536", "1048576", "16777216", "67108864"})
+    int size;
+
+    @Param({"ascii", "mixed"})              // mixed：夹杂2~4字节的UTF-8字符
+    String text;
+
+    private byte[] data;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() {
+        data = sampleText(size, text.equals("mixed"), 42);
+        direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+    }
+
+    @Benchmark
+    public byte[] stringBuilder() {
+        return new StringBuilder(new String(data)).reverse().toString().getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer kernelUtf8() {
+        SegmentReverser.reverse(direct, 0, direct.limit(), SegmentReverser.MODE_UTF8);
+        return direct;
+    }
+
+    @Benchmark
+    public ByteBuffer kernelBytes() {
+        SegmentReverser.reverse(direct, 0, direct.limit(), SegmentReverser.MODE_BYTES);
+        return direct;
+    }
+
+    // 生成正好 size 字节的合法UTF-8文本
+    static byte[] sampleText(int size, boolean mixed, long seed) {
+        String[] pieces = mixed ? new String[]{"a", "b", " ", "é", "中", "文", "😀"} : new String[]{"a", "b", "c", " ", "\n"};
+        Random random = new Random(seed);
+        ByteBuffer out = ByteBuffer.allocate(size);
+        while (out.hasRemaining()) {
+            byte[] piece = pieces[random.nextInt(pieces.length)].getBytes(StandardCharsets.UTF_8);
+            if (piece.length > out.remaining()) piece = "a".getBytes(StandardCharsets.UTF_8);
+            out.put(piece);
+        }
+        return out.array();
+    }
+}
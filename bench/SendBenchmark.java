@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 上传路径的回环基准：旧实现（每段重新打开文件 + 1 KiB 堆缓冲）对比 SendThread（文件只开一次 + 聚集写/transferTo）
+// 对端只读不回，测的是纯发送吞吐；每次调用把整个文件发一遍，所以用 SingleShotTime
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SendBenchmark {
+    @Param({"67108864"})
+    long fileSize;
+
+    @Param({"64-1024", "4096-65536", "262144-4194304"})
+    String bounds;                      // Lmin-Lmax
+
+    private Path file;
+    private ServerSocketChannel sink;
+    private InetSocketAddress address;
+    private List<reverseTcpClient.FileSegment> segments;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("send-bench", ".dat");
+        fillFile(file, fileSize);
+        String[] range = bounds.split("-");
+        segments = new reverseTcpClient().splitFileData(file.toString(), Integer.parseInt(range[0]), Integer.parseInt(range[1]), 42);
+        sink = ServerSocketChannel.open();
+        sink.bind(new InetSocketAddress("127.0.0.1", 0));
+        address = (InetSocketAddress) sink.getLocalAddress();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long legacySend() throws Exception {
+        CompletableFuture<Long> drained = CompletableFuture.supplyAsync(this::drain);
+        try (SocketChannel client = SocketChannel.open(address)) {
+            for (reverseTcpClient.FileSegment segment : segments) {
+                legacySend(client, segment);
+            }
+            client.shutdownOutput();
+            return received(drained);
+        }
+    }
+
+    @Benchmark
+    public long sendThread() throws Exception {
+        CompletableFuture<Long> drained = CompletableFuture.supplyAsync(this::drain);
+        try (SocketChannel client = SocketChannel.open(address)) {
+            new SendThread(client, file.toString(), segments).run();
+            return received(drained);
+        }
+    }
+
+    private long received(CompletableFuture<Long> drained) throws ExecutionException, InterruptedException, IOException {
+        long bytes = drained.get();
+        if (bytes < fileSize) throw new IOException("Sink got " + bytes + " of " + fileSize + " bytes");
+        return bytes;
+    }
+
+    // 对端：读到EOF为止，返回收到的字节数
+    private long drain() {
+        try (SocketChannel peer = sink.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            long total = 0;
+            int n;
+            while ((n = peer.read(buffer)) != -1) {
+                total += n;
+                buffer.clear();
+            }
+            return total;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 改动前 SendThread.sendMessage 的做法
+    private void legacySend(SocketChannel client, reverseTcpClient.FileSegment segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.putShort(reverseTcpClient._clientToServer);
+        buffer.putInt(segment.size);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+        buffer.clear();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileChannel.position(segment.position);
+            int left = segment.size;
+            while (left > 0) {
+                buffer.limit(Math.min(buffer.capacity(), left));
+                int bytesRead = fileChannel.read(buffer);
+                if (bytesRead == -1) break;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    client.write(buffer);
+                }
+                buffer.clear();
+                left -= bytesRead;
+            }
+        }
+    }
+
+    private static void fillFile(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer block = ByteBuffer.allocate(1 << 20);
+            for (int i = 0; i < block.capacity(); i++) {
+                block.put((byte) ('a' + i % 26));
+            }
+            for (long written = 0; written < size; ) {
+                block.clear().limit((int) Math.min(block.capacity(), size - written));
+                written += channel.write(block);
+            }
+        }
+    }
+}
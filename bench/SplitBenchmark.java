@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 客户端切分大文件：只算分块边界，utf8模式每个切点要多读几个字节对齐到码点
+// 测试文件在 java.io.tmpdir 下生成，跑完删掉
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitBenchmark {
+    @Param({"67108864", "1073741824"})
+    long fileSize;
+
+    @Param({"64-1024", "4096-65536", "1048576-4194304"})     // Lmin-Lmax
+    String range;
+
+    @Param({"utf8", "bytes"})
+    String mode;
+
+    private Path file;
+    private reverseTcpClient client;
+    private int Lmin;
+    private int Lmax;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] bounds = range.split("-");
+        Lmin = Integer.parseInt(bounds[0]);
+        Lmax = Integer.parseInt(bounds[1]);
+        client = new reverseTcpClient();
+        client.mode = SegmentReverser.parseMode(mode);
+
+        file = Files.createTempFile("split-bench", ".txt");
+        ByteBuffer block = ByteBuffer.wrap(ReverseBenchmark.sampleText(1 << 20, true, 42));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < fileSize; ) {
+                block.clear().limit((int) Math.min(block.capacity(), fileSize - written));
+                while (block.hasRemaining()) {
+                    written += channel.write(block);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<reverseTcpClient.FileSegment> splitFileData() throws IOException {
+        return client.splitFileData(file.toString(), Lmin, Lmax);
+    }
+}
@@ -0,0 +1,18 @@
+#!/bin/bash
+# 构建并运行JMH基准，结果以JSON保存到 bench/results/<提交号>.json，便于不同版本之间对比
+# 用法：bench/run.sh [JMH参数...]
+#   bench/run.sh                          全部基准
+#   bench/run.sh HeaderBenchmark          只跑匹配的基准（正则）
+#   bench/run.sh ReverseBenchmark -p size=67108864 -f 1
+set -e
+BENCH_DIR="$(cd "$(dirname "$0")" && pwd)"
+cd "$BENCH_DIR"
+
+mvn -B -q package
+mkdir -p results
+REV=$(git rev-parse --short HEAD 2>/dev/null || echo local)
+if ! git diff --quiet HEAD -- .. 2>/dev/null; then REV="$REV-dirty"; fi
+OUT="results/$REV.json"
+
+java -jar target/benchmarks.jar -rf json -rff "$OUT" "$@"
+echo "Results written to bench/$OUT"
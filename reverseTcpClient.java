@@ -1,11 +1,13 @@
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.File;
-import java.io.RandomAccessFile;
 
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,8 +15,14 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 
 // 主类
 public class reverseTcpClient {
@@ -23,39 +31,134 @@ public class reverseTcpClient {
     public static final byte _clientToServer = 0x03;
     public static final byte _serverToClient = 0x04;
     public static final int _headerSize = 6;                                // 头部字段长度
-    private final ByteBuffer buffer = ByteBuffer.allocate(1024);    // position limit capacity
+
+    int window = 16;                                                        // v2协议下最多同时在途的分块数
+    boolean legacy = false;                                                 // 强制使用v1停等协议
+    int mode = SegmentReverser.MODE_UTF8;                                   // utf8按字符反转，bytes按字节反转（二进制文件）
+    int connections = 1;                                                    // 并行连接数，分块轮流分给各个连接
+    int codecs = 0;                                                         // 报给服务器的压缩算法（位掩码），0为不压缩
+    int compressThreshold = Codec.DEFAULT_THRESHOLD;                        // 小于这个大小的分块不压缩
+    boolean resume = false;                                                 // 记续传日志，中断后重跑只传没完成的分块
+    int retries = 3;                                                        // 续传模式下连接断开自动重连的次数
+    boolean adaptive = false;                                               // 边发边切，按测得的吞吐和RTT调整分块大小，Lmin/Lmax只作上下限
+    boolean session = false;                                                // 多个源文件共用一个连接依次传
+    int batchBytes = 0;                                                     // 小分块拼成批量帧发送，正文字节上限，0为不拼
+    int batchCount = 256;                                                   // 一个批量帧最多带多少块
+    int handshakeTimeout = 5000;                                            // 等握手应答的毫秒数，v2握手超时就当作旧服务器，退回v1
 
     // 主方法
     public static void main(String[] args) {
-        if (args.length < 5) {
+        reverseTcpClient reverseClient = new reverseTcpClient();
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--window": reverseClient.window = Integer.parseInt(args[++i]); break;
+                case "--legacy": reverseClient.legacy = true; break;
+                case "--mode": reverseClient.mode = SegmentReverser.parseMode(args[++i]); break;
+                case "--connections": reverseClient.connections = Integer.parseInt(args[++i]); break;
+                case "--compress": reverseClient.codecs = Codec.parseOffer(args[++i]); break;
+                case "--compress-threshold": reverseClient.compressThreshold = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--resume": reverseClient.resume = true; break;
+                case "--retries": reverseClient.retries = Integer.parseInt(args[++i]); break;
+                case "--adaptive": reverseClient.adaptive = true; break;
+                case "--session": reverseClient.session = true; break;
+                case "--batch": reverseClient.batchBytes = Math.min(Protocol.MAX_BATCH, Integer.parseInt(args[++i])); break;
+                case "--batch-count": reverseClient.batchCount = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--handshake-timeout": reverseClient.handshakeTimeout = Math.max(1, Integer.parseInt(args[++i])); break;
+                default: positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 5) {
             System.out.println("需要5个参数[ip, 端口, 分段最小长度, 分段最大长度, 源文件地址]");
             System.out.println("第6个参数可选[反转文件保存路径] 不提供采用默认地址");
+            System.out.println("可选项[--window 在途分块数(默认16)] [--legacy 使用旧的停等协议] [--mode utf8|bytes 反转方式(默认utf8)] [--connections 并行连接数(默认1)]");
+            System.out.println("      [--compress none|lz4|deflate|auto 压缩分块(默认none)] [--compress-threshold 压缩的分块大小下限(字节,默认512)]");
+            System.out.println("      [--resume 记录续传日志，重跑时只传没完成的分块] [--retries 续传模式下断线重连次数(默认3)]");
+            System.out.println("      [--adaptive 自适应分块大小，Lmin/Lmax为上下限(填0用默认的4KiB~4MiB)]");
+            System.out.println("      [--session 第5个参数起都是源文件或目录，共用一个连接依次传，结果存为同目录下的 reversed_<文件名>]");
+            System.out.println("      [--batch 小分块拼成批量帧发送，正文字节上限(默认0不拼,最大1MiB)] [--batch-count 每帧最多块数(默认256)]");
+            System.out.println("      [--handshake-timeout 等握手应答的时间(毫秒,默认5000)，v2握手超时退回v1]");
+            return;
+        }
+        if (reverseClient.adaptive && (reverseClient.resume || reverseClient.legacy || reverseClient.session)) {
+            System.out.println("--adaptive 的分块边界在发送过程中才确定，不能和 --resume、--legacy 或 --session 一起用");
             return;
         }
-        String serverIp = args[0];
-        int serverPort = Integer.parseInt(args[1]);
+        if (reverseClient.session && (reverseClient.resume || reverseClient.legacy)) {
+            System.out.println("--session 不能和 --resume 或 --legacy 一起用");
+            return;
+        }
+        String serverIp = positional.get(0);
+        int serverPort = Integer.parseInt(positional.get(1));
         // 随机分段的长度限定范围，最后一块除外（最后一块可能会小于Lmin）
-        int Lmin = Integer.parseInt(args[2]);
-        int Lmax = Integer.parseInt(args[3]);
-        String filePath = args[4];
+        int Lmin = Integer.parseInt(positional.get(2));
+        int Lmax = Integer.parseInt(positional.get(3));
+        String filePath = positional.get(4);
         String savePath = null;
 
-        if (args.length >= 6){
-            savePath = args[5];
+        if (positional.size() >= 6){
+            savePath = positional.get(5);
         }
 
         try {
-            new reverseTcpClient().startClient(serverIp, serverPort, Lmin, Lmax, filePath, savePath);
+            if (reverseClient.session) {
+                reverseClient.startSession(serverIp, serverPort, Lmin, Lmax, positional.subList(4, positional.size()));
+            } else {
+                reverseClient.startClient(serverIp, serverPort, Lmin, Lmax, filePath, savePath);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // 启动客户端 启动两个线程
+    // 多文件会话：源文件（目录则取其中的普通文件）轮流分给K个连接，每个连接一个会话依次传完分到的文件
+    // 服务器不支持会话时退回每个文件单独建连接
+    public void startSession(String serverIp, int serverPort, int Lmin, int Lmax, List<String> sources) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(serverIp, serverPort);
+        List<Path> files = new ArrayList<>();
+        for (String source : sources) {
+            Path path = Paths.get(source);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> listing = Files.list(path)) {
+                    listing.filter(Files::isRegularFile)
+                            .filter(file -> !file.getFileName().toString().startsWith("reversed_"))   // 上次的结果
+                            .sorted()
+                            .forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        int K = Math.max(1, Math.min(connections, files.size()));
+        List<List<Path>> groups = new ArrayList<>();
+        for (int k = 0; k < K; k++) {
+            groups.add(new ArrayList<>());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            groups.get(i % K).add(files.get(i));
+        }
+        try {
+            runConnections(K, k -> {
+                boolean served;
+                try (ClientSession session = new ClientSession(this, groups.get(k), Lmin, Lmax)) {
+                    served = transfer(address, null, Collections.synchronizedList(new ArrayList<>()), session, null, null, 0);
+                }
+                if (!served) {
+                    System.out.println("Server does not support sessions, sending files one connection each");
+                    for (Path file : groups.get(k)) {
+                        startClient(serverIp, serverPort, Lmin, Lmax, file.toString(), ClientSession.outputFor(file).toString());
+                    }
+                }
+            });
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        System.out.println(BufferPool.shared().stats());
+    }
+
+    // 启动客户端：分块轮流分给K个连接，每个连接各自握手、各起一对收发线程，结果写进同一个文件
     public void startClient(String serverIp, int serverPort, int Lmin, int Lmax, String filePath, String savePath) throws IOException {
         InetSocketAddress address = new InetSocketAddress(serverIp, serverPort);
-        SocketChannel client = SocketChannel.open(address);
-        client.configureBlocking(false);
 
         // 文件保存地址
         if(savePath == null){
@@ -67,195 +170,420 @@ public class reverseTcpClient {
 //            savePath = "/Users/lloyd/Desktop/reversed_" + fileName + ".txt";
         }
 
-        // 获取分块
-        List<FileSegment> segments = splitFileData(filePath, Lmin, Lmax);
-        // 分块个数
-        int N = segments.size();
-        // 发送初始化消息
-        buffer.putShort(_initialization);
-        buffer.putInt(N);
-        buffer.flip();
-        while(buffer.hasRemaining()){
-            client.write(buffer);
+        Path source = Paths.get(filePath);
+        long fileSize = Files.size(source);
+        if (adaptive) {
+            try (SegmentCutter cutter = new SegmentCutter(source, mode, Lmin, Lmax);
+                 ReversedFileWriter writer = new ReversedFileWriter(savePath, fileSize)) {
+                transferAll(address, filePath, Collections.emptyList(), cutter, writer, null, 0);
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+            System.out.println(BufferPool.shared().stats());
+            return;
         }
-        buffer.clear();
-        ByteBuffer typeBuffer = ByteBuffer.allocate(2);
-        while(typeBuffer.hasRemaining()){
-            client.read(typeBuffer);    // 非阻塞模式下非阻塞，从SocketChannel里面读取数据最小单位就是1个字节，但可能存在一轮读不满预期的情况
+
+        // 获取分块；续传时沿用日志里的种子，切出和上次一样的分块
+        Path journalPath = Paths.get(savePath + ".journal");
+        TransferJournal journal = resume ? TransferJournal.load(journalPath, source, Lmin, Lmax, mode) : null;
+        long seed = journal != null ? journal.seed : new Random().nextLong();
+        List<FileSegment> segments = splitFileData(filePath, Lmin, Lmax, seed);
+        if (journal != null && journal.count != segments.size()) {
+            journal.close();
+            journal = null;                 // 同样的种子切出了不同的分块，说明源文件内容变了
         }
-        typeBuffer.flip();                          // limit设为当前position，position回到0
-        short messageType = typeBuffer.getShort();
-        if(messageType != _agreement){
-            System.out.println("Server refuse your request");
-            return;
-        } else{
-            System.out.println("Server agreed to receive " + N + " segments");
-            typeBuffer.clear();
+        boolean resuming = journal != null;
+        if (resuming) {
+            System.out.println("Resuming " + savePath + ": " + journal.completed() + " of " + segments.size() + " segments already done");
+        } else if (resume) {
+            journal = TransferJournal.create(journalPath, source, Lmin, Lmax, mode, seed, segments.size());
+        }
+
+        ReversedFileWriter writer = new ReversedFileWriter(savePath, fileSize);     // 大小不变时保留已写好的内容
+        if (journal != null) journal.attach(writer);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                List<FileSegment> pending = journal == null ? segments : journal.missing(segments);
+                if (pending.isEmpty()) break;
+                try {
+                    transferAll(address, filePath, pending, null, writer, journal, resuming ? seed : 0);
+                    break;
+                } catch (IOException e) {
+                    if (journal == null || attempt >= retries) throw e;
+                    System.out.println("Transfer interrupted (" + e.getMessage() + "), " + journal.completed() + " of "
+                            + segments.size() + " segments done, reconnecting...");
+                    journal.flush();
+                    resuming = true;
+                    Thread.sleep(1000L << attempt);
+                }
+            }
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        } finally {
+            if (journal != null) journal.close();   // 先 force 输出文件再落盘位图
+            writer.close();                 // 所有连接共用一个写入器，统一落盘一次
+        }
+        if (journal != null && journal.isComplete()) {
+            journal.delete();
+        }
+        System.out.println(BufferPool.shared().stats());
+    }
+
+    // 一个连接：握手，然后启动收发两个线程，把分到的分块传完
+    // feed非null时（自适应分块、多文件会话）segments一开始是空的，由发送线程边产生边追加，分块个数事先不知道；
+    // 这两种都要v2，服务器做不到（只认v1，或者不支持会话）时什么都不发，返回false
+    private boolean transfer(InetSocketAddress address, String filePath, List<FileSegment> segments, SegmentFeed feed,
+                             ReversedFileWriter writer, TransferJournal journal, long resumeId) throws IOException {
+        SocketChannel client = SocketChannel.open(address);
+        client.configureBlocking(false);
+        // 分块个数，-1表示不知道
+        int N = feed != null ? -1 : segments.size();
+        boolean session = feed instanceof ClientSession;
+        // 握手：先尝试v2，服务器不认识就重连退回v1
+        int[] agreed;
+        try {
+            agreed = handshake(client, N, legacy ? Protocol.VERSION_1 : Protocol.VERSION_2, resumeId, session);
+        } catch (IOException e) {
+            if (legacy) throw e;
+            // 旧服务器不认识v2握手，只打一行"意料之外"，连接不断也不应答，等到 handshakeTimeout 超时；
+            // 也可能把选项区当成后续帧的头部乱解析，断开或者回错的报文
+            agreed = null;
+        }
+        if (agreed == null && !legacy) {
+            client.close();
+            if (feed != null) return false;     // v1握手必须先报分块个数
+            client = SocketChannel.open(address);
+            client.configureBlocking(false);
+            agreed = handshake(client, N, Protocol.VERSION_1, resumeId, false);
         }
+        if(agreed == null){
+            client.close();
+            throw new IOException("Server refuse your request");
+        }
+        if (session && agreed[3] == 0) {
+            client.close();
+            return false;
+        }
+        // 握手要在选择器上等超时，用非阻塞；之后收发线程各自阻塞读写，没有数据时睡在内核里，不空转
+        client.configureBlocking(true);
+        int version = agreed[0];
+        int codec = agreed[2];
+        System.out.println("Server agreed to receive " + (N < 0 ? "adaptive" : String.valueOf(N)) + " segments (protocol v" + version + ", window " + agreed[1] + ", compression " + Codec.name(codec) + ")");
+        Semaphore inFlight = version >= Protocol.VERSION_2 ? new Semaphore(agreed[1]) : null;   // v1不限，服务器自己停等；窗口按帧计，批量帧占一个
+        SegmentBatch batch = agreed[4] > 0
+                ? new SegmentBatch(Math.min(batchBytes, agreed[4]), batchCount) : null;
+        if (batch != null) System.out.println("Batching segments up to " + Math.min(batchBytes, agreed[4]) + " bytes / " + batchCount + " per frame");
 
         // 发送分块后的文件块 创建发送线程
-        SendThread sendThread = new SendThread(client, filePath, segments);
+        SendThread sendThread = new SendThread(client, filePath, segments, version, inFlight, codec, compressThreshold, feed, batch);
         // 接收文件块 创建接收线程
-        ReceivedThread receivedThread = new ReceivedThread(client, N, savePath);
+        ReceivedThread receivedThread = new ReceivedThread(client, segments, writer, version, inFlight, codec, journal, feed);
         // 启动两个线程
         sendThread.start();
         receivedThread.start();
         // 等待两个线程完成
         try{
-            sendThread.join();
             receivedThread.join();
+            if (receivedThread.error != null) sendThread.interrupt();  // 不会再有应答归还窗口，别让发送线程一直等
+            sendThread.join();
         } catch (InterruptedException e){
             e.printStackTrace();
+        } finally {
+            client.close();
+        }
+        if (receivedThread.error != null) {
+            throw receivedThread.error;
+        }
+        if (feed instanceof SegmentSizer) System.out.println(feed);
+        return true;
+    }
+
+    // 发送初始化消息并等待同意，返回 {协议版本, 窗口, 压缩算法, 是否同意会话, 批量帧上限}；服务器拒绝或断开返回null
+    // resumeId非0时带上 OPT_RESUME，告诉服务器这是一次续传；session 时带上 OPT_SESSION（v1握手没有选项，都不带）
+    // 开了 --batch 时带上 OPT_BATCH，老服务器不认识、不回显，就照常一块一帧
+    private int[] handshake(SocketChannel client, int N, int version, long resumeId, boolean session) throws IOException {
+        if (version >= Protocol.VERSION_2) {
+            Map<Integer, Long> options = new LinkedHashMap<>();
+            if (N >= 0) options.put(Protocol.OPT_SEGMENTS, (long) N);
+            options.put(Protocol.OPT_WINDOW, (long) window);
+            options.put(Protocol.OPT_MODE, (long) mode);
+            if (codecs != 0) options.put(Protocol.OPT_CODECS, (long) codecs);
+            if (resumeId != 0) options.put(Protocol.OPT_RESUME, resumeId);
+            if (session) options.put(Protocol.OPT_SESSION, 1L);
+            if (batchBytes > 0) options.put(Protocol.OPT_BATCH, (long) batchBytes);
+            writeFully(client, Protocol.handshake(version, _initialization, options));
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(_headerSize);
+            buffer.putShort(_initialization);
+            buffer.putInt(N);
+            buffer.flip();
+            writeFully(client, buffer);
+        }
+        ByteBuffer typeBuffer = ByteBuffer.allocate(2);
+        long deadline = System.nanoTime() + handshakeTimeout * 1_000_000L;
+        if (!readFully(client, typeBuffer, deadline)) return null;
+        typeBuffer.flip();                          // limit设为当前position，position回到0
+        short messageType = typeBuffer.getShort();
+        if (messageType == _agreement) {
+            // 发的是v2握手却收到v1的同意：旧服务器把选项区里的某几个字节当成了v1初始化帧，这个连接的帧边界已经乱了
+            if (version >= Protocol.VERSION_2) return null;
+            return new int[]{Protocol.VERSION_1, 1, Codec.NONE, 0, 0};
+        }
+        if (messageType != Protocol.handshakeType(Protocol.VERSION_2, _agreement)) {
+            return null;
+        }
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        if (!readFully(client, lengthBuffer, deadline)) return null;
+        lengthBuffer.flip();
+        ByteBuffer body = ByteBuffer.allocate(lengthBuffer.getInt());
+        if (!readFully(client, body, deadline)) return null;
+        body.flip();
+        Map<Integer, Long> accepted = Protocol.parseOptions(body);
+        int codec = accepted.getOrDefault(Protocol.OPT_CODEC, (long) Codec.NONE).intValue();
+        if (codec != Codec.NONE && (codecs & Codec.mask(codec)) == 0) {
+            throw new IOException("Server picked a codec we did not offer: " + codec);
         }
-        client.close();
+        return new int[]{Protocol.VERSION_2, accepted.getOrDefault(Protocol.OPT_WINDOW, 1L).intValue(), codec,
+                accepted.getOrDefault(Protocol.OPT_SESSION, 0L).intValue(),
+                (int) Math.min(accepted.getOrDefault(Protocol.OPT_BATCH, 0L), Protocol.MAX_BATCH)};
+    }
+
+    private static void writeFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            client.write(buffer);
+        }
+    }
+
+    // 非阻塞模式下一轮可能读不满，没有数据时在选择器上等，不空转；读满返回true，对端关闭返回false，过了deadline（nanoTime）抛超时
+    private static boolean readFully(SocketChannel client, ByteBuffer buffer, long deadline) throws IOException {
+        try (Selector selector = Selector.open()) {
+            client.register(selector, SelectionKey.OP_READ);
+            while(buffer.hasRemaining()){
+                int n = client.read(buffer);
+                if (n == -1) return false;
+                if (n > 0) continue;
+                long wait = (deadline - System.nanoTime()) / 1_000_000L;
+                if (wait <= 0) throw new SocketTimeoutException("Handshake timed out");
+                selector.select(wait);
+            }
+        }
+        return true;
+    }
+
+    // 分块轮流分给K个连接，每个连接各自握手、各起一对收发线程；resumeId非0表示续传
+    // cutter非null时是自适应分块：K个连接共用一个切分器，各自按自己测到的吞吐决定切多大
+    private void transferAll(InetSocketAddress address, String filePath, List<FileSegment> segments, SegmentCutter cutter,
+                             ReversedFileWriter writer, TransferJournal journal, long resumeId) throws IOException, InterruptedException {
+        int K = cutter != null ? Math.max(1, connections) : Math.max(1, Math.min(connections, segments.size()));
+        List<List<FileSegment>> groups = new ArrayList<>();
+        for (int k = 0; k < K; k++) {
+            groups.add(cutter != null ? Collections.synchronizedList(new ArrayList<>()) : new ArrayList<>());
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            groups.get(i % K).add(segments.get(i));
+        }
+        runConnections(K, k -> {
+            SegmentSizer sizer = cutter != null ? new SegmentSizer(cutter, window) : null;
+            if (!transfer(address, filePath, groups.get(k), sizer, writer, journal, resumeId)) {
+                throw new IOException("Adaptive segmentation needs protocol v2");
+            }
+        });
     }
 
-    // 文件随机分块
+    private interface ConnectionTask {
+        void run(int k) throws IOException;
+    }
+
+    // K个连接各用一个线程跑（只有一个就在当前线程跑），等全部结束后抛出第一个错误
+    private static void runConnections(int K, ConnectionTask task) throws IOException, InterruptedException {
+        if (K == 1) {
+            task.run(0);
+            return;
+        }
+        List<Thread> workers = new ArrayList<>();
+        List<IOException> errors = new ArrayList<>();
+        for (int k = 0; k < K; k++) {
+            int id = k;
+            Thread worker = new Thread(() -> {
+                try {
+                    task.run(id);
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }, "connection-" + k);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    // 文件随机分块；utf8模式下切点会往前挪到码点起始处，被切断的字符整个归到下一块
     public List<FileSegment> splitFileData(String filePath, int Lmin, int Lmax) throws IOException{
+        return splitFileData(filePath, Lmin, Lmax, new Random().nextLong());
+    }
+
+    // 同一个文件、同一个种子切出的分块完全相同，续传靠这个复现分块方案
+    public List<FileSegment> splitFileData(String filePath, int Lmin, int Lmax, long seed) throws IOException{
         List<FileSegment> segments = new ArrayList<>();
         Path path = Paths.get(filePath);
         long fileSize = Files.size(path);
         long position = 0;
 
-        Random random = new Random();
+        Random random = new Random(seed);
 
-        while (position < fileSize) {
-            int segmentSize = random.nextInt(Lmax - Lmin + 1) + Lmin;
-            if (position + segmentSize > fileSize) {
-                segmentSize = (int) (fileSize - position);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer cutWindow = ByteBuffer.allocate(4);
+            while (position < fileSize) {
+                int segmentSize = random.nextInt(Lmax - Lmin + 1) + Lmin;
+                if (position + segmentSize > fileSize) {
+                    segmentSize = (int) (fileSize - position);
+                } else if (mode == SegmentReverser.MODE_UTF8) {
+                    segmentSize = alignToCodePoint(fileChannel, cutWindow, position, segmentSize);
+                }
+                FileSegment segment = new FileSegment(position, segmentSize);
+                segment.index = segments.size();
+                segments.add(segment);
+                position += segmentSize;
             }
-            segments.add(new FileSegment(position, segmentSize));
-            position += segmentSize;
         }
         return segments;
     }
 
+    // 看切点附近最多4个字节：切点落在续字节上就往前退到首字节，至少保留1个字节；找不到首字节（不是UTF-8）就不动
+    static int alignToCodePoint(FileChannel fileChannel, ByteBuffer cutWindow, long position, int segmentSize) throws IOException {
+        long cut = position + segmentSize;
+        long start = Math.max(position + 1, cut - 3);
+        cutWindow.clear().limit((int) (cut - start + 1));
+        while (cutWindow.hasRemaining()) {
+            if (fileChannel.read(cutWindow, start + cutWindow.position()) == -1) break;
+        }
+        for (int i = cutWindow.position() - 1; i >= 0; i--) {
+            if (!SegmentReverser.isContinuation(cutWindow.get(i))) {
+                return (int) (start + i - position);
+            }
+        }
+        return segmentSize;
+    }
+
     static class FileSegment{
         long position;
         int size;
+        int index;                  // 在整个分块方案里的序号，续传日志按它记位图
+        long sentAt;                // 自适应分块：发出的时刻，收到应答时算RTT
+        int epoch;                  // 自适应分块：切这块时所用大小的代号，见 SegmentSizer
+        FileChannel source;         // 多文件会话：分块所属的源文件和输出文件，为null时用连接自己的
+        ReversedFileWriter output;
         public FileSegment(long position, int size){
             this.position = position;
             this.size = size;
         }
     }
 }
-// 发送类
-class SendThread extends Thread{
-    private final SocketChannel client;
-    private final List<reverseTcpClient.FileSegment> segments;
-    private final ByteBuffer buffer;
-    private final String filePath;
-
-    public SendThread(SocketChannel client, String filePath, List<reverseTcpClient.FileSegment> segments){
-        this.client = client;
-        this.filePath = filePath;
-        this.segments = segments;
-        buffer = ByteBuffer.allocate(1024);
-    }
-
-    @Override
-    public void run(){
-        try{
-            for(reverseTcpClient.FileSegment segment : segments){
-                sendMessage(client, reverseTcpClient._clientToServer, filePath, segment);
-            }
-        } catch(IOException e){
-            e.printStackTrace();
-        } finally {
-            try {
-                client.shutdownOutput(); // 关闭输出流
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    public void sendMessage(SocketChannel client, byte messageType, String filePath, reverseTcpClient.FileSegment segment) throws IOException{
-        // 发送头部字段 type（2B） + size（4B）
-        buffer.putShort(messageType);
-        buffer.putInt(segment.size);
-        buffer.flip();
-        while(buffer.hasRemaining()){           // 检查的是position和limit之间的距离
-            client.write(buffer);
-        }
-        buffer.clear();
-        // 发送内容
-        try (FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
-            fileChannel.position(segment.position);
-            while (segment.size > 0) {
-                int leftBytesToRead = Math.min(buffer.remaining(), segment.size);
-                buffer.limit(leftBytesToRead);
-                int bytesRead = fileChannel.read(buffer);
-                if (bytesRead == -1) break;
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    client.write(buffer);
-                }
-                buffer.clear();
-                segment.size -= bytesRead;
-            }
-        }
-    }
-}
 // 接收类
 class ReceivedThread extends Thread{
     private final SocketChannel client;
     private final ByteBuffer buffer;
     private final ByteBuffer headerBuffer;
     private int N;
-    private final String savePath;
-    private final String tempFolderPath = "/Users/lloyd/temp";
+    private final List<reverseTcpClient.FileSegment> segments;        // v1按发送顺序应答，第i个应答对应第i个分块；v2按seq对应
+    private final ReversedFileWriter writer;
+    private final int version;
+    private final Semaphore inFlight;
+    private final int codec;
+    private final TransferJournal journal;  // 续传日志，不续传时为null
+    private final SegmentFeed feed;         // 自适应分块、多文件会话：分块个数事先不知道，一直收到服务器关闭连接
+    IOException error;                      // 接收失败的原因，结果文件不完整
 
-    public ReceivedThread(SocketChannel client, int N, String savePath) {
+    public ReceivedThread(SocketChannel client, List<reverseTcpClient.FileSegment> segments, ReversedFileWriter writer, int version, Semaphore inFlight,
+                          int codec, TransferJournal journal, SegmentFeed feed) {
         this.client = client;
-        buffer = ByteBuffer.allocate(1024);
-        this.N = N;
-        this.savePath = savePath;
-        headerBuffer = ByteBuffer.allocate(reverseTcpClient._headerSize);
+        buffer = BufferPool.shared().acquire(BufferPool.chunkSize);
+        this.N = feed != null ? Integer.MAX_VALUE : segments.size();
+        this.feed = feed;
+        this.segments = segments;
+        this.writer = writer;
+        this.version = version;
+        this.inFlight = inFlight;
+        this.codec = codec;
+        this.journal = journal;
+        headerBuffer = ByteBuffer.allocate(Protocol.headerSize(version, codec));
     }
 
     @Override
     public void run() {
         try{
-            while (true) {
-                byte[] messageContent = new byte[0];                      // 准备数据
-                // 先读取头部6字节
+            int index = 0;
+            while (N > 0) {
+                // 先读取头部（v1 6字节，v2 10字节，协商了压缩14字节）
                 while(headerBuffer.hasRemaining()){
-                    client.read(headerBuffer);
+                    if (client.read(headerBuffer) == -1) {
+                        // 发送线程发完关闭了输出，应答也收齐了，服务器随后关闭连接，这就是正常结束
+                        if (feed != null && headerBuffer.position() == 0 && feed.isFinished() && index == segments.size()) return;
+                        throw new IOException("Server closed connection");
+                    }
                 }
                 headerBuffer.flip();
 
                 short messageType = headerBuffer.getShort();
                 int segmentSize = headerBuffer.getInt();
+                int seq = version >= Protocol.VERSION_2 ? headerBuffer.getInt() : index;
+                int rawLength = headerBuffer.hasRemaining() ? headerBuffer.getInt() : segmentSize;
                 headerBuffer.clear();
+                if (feed != null && feed.control(Protocol.messageTypeOf(messageType), seq, segmentSize)) continue;   // 会话的控制帧
+                if (messageType == Protocol.BATCH_REPLY) {
+                    int count = receiveBatch(seq, segmentSize);
+                    index += count;
+                    if (inFlight != null) inFlight.release();  // 一帧占一个窗口名额
+                    N -= count;
+                    continue;
+                }
+                index++;
                 if(messageType == reverseTcpClient._serverToClient){
-                    messageContent = new byte[segmentSize];
                     System.out.println("Receiving segment (Size: " + segmentSize + " )from Server...");
                 }
-                // 读取剩余内容
+                if (seq < 0 || seq >= segments.size()) {
+                    throw new IOException("Unknown segment seq: " + seq);
+                }
+                reverseTcpClient.FileSegment segment = segments.get(seq);
+                ReversedFileWriter output = segment.output != null ? segment.output : writer;
+                long position = segment.position;
+                if (rawLength != segmentSize) {
+                    receiveCompressed(output, position, segmentSize, rawLength, segment.size);
+                    if (journal != null) journal.complete(segment.index);
+                    if (feed != null) feed.acked(segment, System.nanoTime());
+                    if (inFlight != null) inFlight.release();
+                    N--;
+                    continue;
+                }
+                // 读取剩余内容，每读满一块就直接写到镜像偏移处，不再整段攒在内存里
                 int bytesRead = 0;              // 每轮开始前的已经读取的长度
                 while(bytesRead < segmentSize){
-                    if (bytesRead == -1) {
-                        System.out.println("Server closed connection");
-                        break;
-                    }
-                    int leftBytesToRead = Math.min(buffer.remaining(), segmentSize - bytesRead);
+                    int leftBytesToRead = Math.min(buffer.capacity(), segmentSize - bytesRead);
                     buffer.limit(leftBytesToRead);
                     int bytesReadLength = client.read(buffer);
-                    if(bytesReadLength == 0) continue;
+                    if (bytesReadLength == -1) {
+                        throw new IOException("Server closed connection");
+                    }
                     buffer.flip();
-                    buffer.get(messageContent, bytesRead, bytesReadLength);
+                    output.write(position, segmentSize, bytesRead, buffer);
                     bytesRead += bytesReadLength;
                     buffer.clear();
                 }
-                String receivedString = new String(messageContent);
-                System.out.println("Received reversed String: " + receivedString);
-
-                insertDataAtFileHead(savePath, messageContent);
 
-                if(--N == 0) break;
+                if (journal != null) journal.complete(segment.index);
+                if (feed != null) feed.acked(segment, System.nanoTime());
+                if (inFlight != null) inFlight.release();      // 腾出窗口
+                N--;
             }
         } catch(IOException e){
+            error = e;
             e.printStackTrace();
         } finally{
             try {
@@ -263,34 +591,493 @@ class ReceivedThread extends Thread{
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            BufferPool.shared().release(buffer);
+        }
+    }
+    // 批量应答：整帧读进内存，按 seq 依次对上分块，返回块数
+    // 同一个输出文件里首尾相接的几块，反转后在结果文件里也首尾相接（顺序倒过来），拼成一段只写一次
+    private int receiveBatch(int firstSeq, int length) throws IOException {
+        if (length < 0 || length > Protocol.MAX_BATCH) throw new IOException("Bad batch reply size: " + length);
+        System.out.println("Receiving batch (Size: " + length + " )from Server...");
+        ByteBuffer body = BufferPool.shared().acquire(length);
+        ByteBuffer run = BufferPool.shared().acquire(length);      // 从尾部往前放，当前这段占 [length - 段长, length)
+        try {
+            while (body.hasRemaining()) {
+                if (client.read(body) == -1) throw new IOException("Server closed connection");
+            }
+            int count = 0;
+            ReversedFileWriter runOutput = null;
+            long runStart = 0;
+            long runEnd = 0;
+            for (int position = 0; position < length; count++) {
+                int seq = firstSeq + count;
+                if (length - position < Protocol.BATCH_ENTRY_HEADER || seq < 0 || seq >= segments.size()) {
+                    throw new IOException("Bad batch reply: entry " + count + " at " + position);
+                }
+                int size = body.getInt(position);
+                position += Protocol.BATCH_ENTRY_HEADER;
+                reverseTcpClient.FileSegment segment = segments.get(seq);
+                if (size != segment.size || size > length - position) {
+                    throw new IOException("Bad batch entry for segment " + seq + ": " + size + " bytes, expected " + segment.size);
+                }
+                ReversedFileWriter output = segment.output != null ? segment.output : writer;
+                if (runOutput != null && (output != runOutput || segment.position != runEnd)) {
+                    writeRun(run, length, runOutput, runStart, runEnd);
+                    runOutput = null;
+                }
+                if (runOutput == null) {
+                    runOutput = output;
+                    runStart = runEnd = segment.position;
+                }
+                run.put(length - (int) (runEnd - runStart) - size, body, position, size);
+                runEnd += size;
+                position += size;
+            }
+            if (runOutput != null) writeRun(run, length, runOutput, runStart, runEnd);
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                reverseTcpClient.FileSegment segment = segments.get(firstSeq + i);
+                if (journal != null) journal.complete(segment.index);
+                if (feed != null) feed.acked(segment, now);
+            }
+            return count;
+        } finally {
+            BufferPool.shared().release(body);
+            BufferPool.shared().release(run);
         }
     }
-    // 保存文件
-    public static void insertDataAtFileHead(String filePath, byte[] segment) throws IOException{
-        File file = new File(filePath);
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        long originalLength = raf.length();
 
-        File tempFile = new File(filePath + ".tmp");
-        RandomAccessFile tempRaf = new RandomAccessFile(tempFile, "rw");
-        // 将待插入数据写入临时文件
-        tempRaf.write(segment);
+    private static void writeRun(ByteBuffer run, int end, ReversedFileWriter output, long start, long stop) throws IOException {
+        int size = (int) (stop - start);
+        output.write(start, run.slice(end - size, size));
+    }
 
-        raf.seek(0);
-        byte[] buffer = new byte[1024];
-        int bytesRead;
-        while ((bytesRead = raf.read(buffer)) != -1) {
-            tempRaf.write(buffer, 0, bytesRead);
+    // 压缩过的应答：整块读进内存解压，再写到镜像偏移处
+    private void receiveCompressed(ReversedFileWriter output, long position, int length, int rawLength, int expected) throws IOException {
+        if (rawLength != expected || length > rawLength) {
+            throw new IOException("Bad compressed reply: " + length + " -> " + rawLength + ", expected " + expected);
+        }
+        ByteBuffer packed = BufferPool.shared().acquire(length);
+        ByteBuffer raw = BufferPool.shared().acquire(rawLength);
+        try {
+            while (packed.hasRemaining()) {
+                if (client.read(packed) == -1) throw new IOException("Server closed connection");
+            }
+            packed.flip();
+            Codec.decompress(codec, packed, raw);
+            raw.flip();
+            output.write(position, raw);
+        } finally {
+            BufferPool.shared().release(packed);
+            BufferPool.shared().release(raw);
         }
+    }
+}
+// 续传日志：和输出文件放在一起（<输出文件>.journal），记录分块方案和已完成分块的位图
+// 分块方案只存随机种子：同一个源文件、同样的 Lmin/Lmax/mode，用同一个种子切出来的分块完全一样
+// 位图攒一批才落盘一次，落盘前先 force 输出文件，保证位图里标记完成的分块内容已经在盘上
+class TransferJournal implements Closeable {
+    private static final int MAGIC = 0x52564A31;                   // "RVJ1"
+    private static final int HEADER_SIZE = 44;
+    private static final int FLUSH_EVERY = 256;                     // 每完成这么多个分块落盘一次
+    private static final long FLUSH_INTERVAL = 1_000_000_000L;      // 或者距上次落盘超过1秒
 
-        tempRaf.close();
-        raf.close();
+    final long seed;
+    final int count;
+    private final Path path;
+    private final FileChannel channel;
+    private final byte[] bitmap;
+    private int completed;
+    private int unflushed;
+    private int dirtyFrom = Integer.MAX_VALUE;                      // 位图里改过、还没落盘的字节范围
+    private int dirtyTo = -1;
+    private long lastFlush = System.nanoTime();
+    private ReversedFileWriter writer;
 
-        if (!file.delete()) {
-            throw new IOException("Failed to delete the original file");
+    private TransferJournal(Path path, FileChannel channel, long seed, int count, byte[] bitmap) {
+        this.path = path;
+        this.channel = channel;
+        this.seed = seed;
+        this.count = count;
+        this.bitmap = bitmap;
+        for (byte b : bitmap) {
+            completed += Integer.bitCount(b & 0xFF);
         }
-        if (!tempFile.renameTo(file)) {
-            throw new IOException("Failed to rename the temporary file to the original file");
+    }
+
+    // 读已有的日志；不存在、损坏或者源文件/分块参数对不上就返回null，由调用方重新开始
+    static TransferJournal load(Path path, Path source, int Lmin, int Lmax, int mode) throws IOException {
+        if (!Files.exists(path)) return null;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readAt(channel, header, 0)) return closeAndNull(channel);
+            header.flip();
+            if (header.getInt() != MAGIC
+                    || header.getLong() != Files.size(source)
+                    || header.getLong() != Files.getLastModifiedTime(source).toMillis()
+                    || header.getInt() != Lmin || header.getInt() != Lmax || header.getInt() != mode) {
+                return closeAndNull(channel);
+            }
+            long seed = header.getLong();
+            int count = header.getInt();
+            if (count < 0) return closeAndNull(channel);
+            ByteBuffer bitmap = ByteBuffer.allocate((count + 7) / 8);
+            if (!readAt(channel, bitmap, HEADER_SIZE)) return closeAndNull(channel);
+            return new TransferJournal(path, channel, seed, count, bitmap.array());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // 新建日志，覆盖旧的
+    static TransferJournal create(Path path, Path source, int Lmin, int Lmax, int mode, long seed, int count) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] bitmap = new byte[(count + 7) / 8];
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmap.length);
+        buffer.putInt(MAGIC);
+        buffer.putLong(Files.size(source));
+        buffer.putLong(Files.getLastModifiedTime(source).toMillis());
+        buffer.putInt(Lmin).putInt(Lmax).putInt(mode);
+        buffer.putLong(seed);
+        buffer.putInt(count);
+        buffer.put(bitmap);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new TransferJournal(path, channel, seed, count, bitmap);
+    }
+
+    // 位图落盘前要先把这个输出文件刷到盘上
+    void attach(ReversedFileWriter writer) {
+        this.writer = writer;
+    }
+
+    synchronized int completed() {
+        return completed;
+    }
+
+    synchronized boolean isComplete() {
+        return completed == count;
+    }
+
+    // 还没完成的分块
+    synchronized List<reverseTcpClient.FileSegment> missing(List<reverseTcpClient.FileSegment> segments) {
+        List<reverseTcpClient.FileSegment> missing = new ArrayList<>();
+        for (reverseTcpClient.FileSegment segment : segments) {
+            if ((bitmap[segment.index >>> 3] & (1 << (segment.index & 7))) == 0) missing.add(segment);
+        }
+        return missing;
+    }
+
+    // 分块已经完整写进输出文件；多个接收线程共用
+    synchronized void complete(int index) throws IOException {
+        int i = index >>> 3;
+        int bit = 1 << (index & 7);
+        if ((bitmap[i] & bit) != 0) return;
+        bitmap[i] |= bit;
+        completed++;
+        unflushed++;
+        dirtyFrom = Math.min(dirtyFrom, i);
+        dirtyTo = Math.max(dirtyTo, i);
+        if (unflushed >= FLUSH_EVERY || System.nanoTime() - lastFlush >= FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    synchronized void flush() throws IOException {
+        lastFlush = System.nanoTime();
+        if (dirtyTo < 0) return;
+        if (writer != null) writer.force();
+        ByteBuffer dirty = ByteBuffer.wrap(bitmap, dirtyFrom, dirtyTo - dirtyFrom + 1);
+        long offset = HEADER_SIZE + dirtyFrom;
+        while (dirty.hasRemaining()) {
+            offset += channel.write(dirty, offset);
+        }
+        channel.force(false);
+        unflushed = 0;
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private static boolean readAt(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) return false;
+        }
+        return true;
+    }
+
+    private static TransferJournal closeAndNull(FileChannel channel) throws IOException {
+        channel.close();
+        return null;
+    }
+}
+// 自适应分块的切分器：不预先把整个文件切好，发送线程要一块才切一块，切点按文件顺序往后推
+// 多个连接共用一个切分器，每个连接按自己的 SegmentSizer 决定切多大；utf8模式下切点同样挪到码点起始处
+class SegmentCutter implements Closeable {
+    static final int DEFAULT_MIN = 4 << 10;
+    static final int DEFAULT_MAX = 4 << 20;            // 窗口16时在途64MiB，和服务器默认的每连接内存上限一致
+
+    final int min;
+    final int max;
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final int mode;
+    private final ByteBuffer cutWindow = ByteBuffer.allocate(4);
+    private long position;
+    private int count;
+
+    // Lmin/Lmax 不大于0时用默认的上下限
+    SegmentCutter(Path source, int mode, int Lmin, int Lmax) throws IOException {
+        this.min = Lmin > 0 ? Lmin : DEFAULT_MIN;
+        this.max = Math.max(min, Lmax > 0 ? Lmax : DEFAULT_MAX);
+        this.mode = mode;
+        fileChannel = FileChannel.open(source, StandardOpenOption.READ);
+        fileSize = fileChannel.size();
+    }
+
+    // 从当前位置切下大约size字节，文件已经切完返回null
+    synchronized reverseTcpClient.FileSegment cut(int size) throws IOException {
+        if (position >= fileSize) return null;
+        int segmentSize = size;
+        if (position + segmentSize > fileSize) {
+            segmentSize = (int) (fileSize - position);
+        } else if (mode == SegmentReverser.MODE_UTF8) {
+            segmentSize = reverseTcpClient.alignToCodePoint(fileChannel, cutWindow, position, segmentSize);
+        }
+        reverseTcpClient.FileSegment segment = new reverseTcpClient.FileSegment(position, segmentSize);
+        segment.index = count++;
+        position += segmentSize;
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
+// 自适应分块的大小控制，每个连接一个：发送线程用 next() 取分块，接收线程用 acked() 报告应答
+// 按"代"测吞吐：每改一次大小开始新的一代，只统计用当前大小切出的分块；从这一代第一个应答开始计时，
+// 攒够一个窗口的应答、并且至少过了两个RTT，就用应答字节数/时间和上一代比较，爬山调整：
+// 变好就沿原方向继续，变差就掉头，持平（差别不到5%）就往小的方向走——同样的吞吐，分块越小在途内存和延迟越小
+// 一开始每代翻倍（慢启动），第一次没变好之后步长改为1.25倍，在最优值附近小幅来回试探
+// 平滑RTT超过 TARGET_RTT 时只减不增
+class SegmentSizer implements SegmentFeed {
+    private static final int INITIAL = 64 << 10;
+    private static final double GAIN = 1.05;
+    private static final double STEP = 1.25;
+    private static final long MIN_EPOCH = 20_000_000L;          // 每代至少测20毫秒
+    private static final long TARGET_RTT = 200_000_000L;
+
+    private final SegmentCutter cutter;
+    private final int epochReplies;
+    private int size;
+    private int epoch;
+    private double step = 2;
+    private int direction = 1;
+    private double lastThroughput;                              // 字节/纳秒，0表示还没测过
+    private long epochStart;
+    private long epochBytes;
+    private int replies;
+    private long srtt;
+    private long minRtt = Long.MAX_VALUE;
+    private volatile boolean finished;
+
+    SegmentSizer(SegmentCutter cutter, int window) {
+        this.cutter = cutter;
+        this.epochReplies = Math.max(4, window);
+        this.size = clamp(INITIAL);
+    }
+
+    // 按当前大小切下一块并记下发出时刻；文件切完返回null
+    @Override
+    public reverseTcpClient.FileSegment next(SendThread sender) throws IOException {
+        int size;
+        int epoch;
+        synchronized (this) {
+            size = this.size;
+            epoch = this.epoch;
+        }
+        reverseTcpClient.FileSegment segment = cutter.cut(size);
+        if (segment == null) {
+            finished = true;
+            return null;
+        }
+        segment.epoch = epoch;
+        segment.sentAt = System.nanoTime();
+        return segment;
+    }
+
+    // 发送线程已经切完，不会再有新的分块
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public synchronized void acked(reverseTcpClient.FileSegment segment, long now) {
+        long rtt = now - segment.sentAt;
+        srtt = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8;
+        minRtt = Math.min(minRtt, rtt);
+        if (segment.epoch != epoch) return;                     // 旧大小切的分块，不算这一代的
+        if (replies++ == 0) {
+            epochStart = now;
+            return;
+        }
+        epochBytes += segment.size;
+        if (replies < epochReplies || now - epochStart < Math.max(MIN_EPOCH, 2 * srtt)) return;
+        adjust(epochBytes / (double) (now - epochStart));
+    }
+
+    private void adjust(double throughput) {
+        if (lastThroughput > 0) {
+            if (throughput * GAIN < lastThroughput) {
+                direction = -direction;
+                step = STEP;
+            } else if (throughput < lastThroughput * GAIN) {
+                direction = -1;
+                step = STEP;
+            }
+        }
+        if (srtt > TARGET_RTT) direction = -1;
+        size = clamp((long) (direction > 0 ? size * step : size / step));
+        lastThroughput = throughput;
+        epoch++;
+        replies = 0;
+        epochBytes = 0;
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(cutter.min, Math.min(cutter.max, size));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Adaptive segment size %d bytes (range %d~%d), srtt %.2f ms, min rtt %.2f ms, last epoch %.1f MB/s",
+                size, cutter.min, cutter.max, srtt / 1e6, minRtt == Long.MAX_VALUE ? 0 : minRtt / 1e6, lastThroughput * 1e3);
+    }
+}
+// 多文件会话：一个连接依次传多个文件，每个文件的分块前后各发一个 BEGIN_FILE / END_FILE，分块的seq在整个连接里递增
+// 发送线程逐个打开、切分文件，分块带着自己的源文件和输出文件；上一个文件的应答还在路上时下一个文件就开始发，窗口整个连接共用
+// 服务器把一个文件的应答都排出去之后才回 END_FILE，接收线程收到时核对分块数，关闭（fsync）这个文件的输出
+class ClientSession implements SegmentFeed, Closeable {
+    private final reverseTcpClient client;
+    private final List<Path> files;
+    private final int Lmin;
+    private final int Lmax;
+    private final Map<Integer, SessionFile> pending = new ConcurrentHashMap<>();   // 已经开始发、还没收到回执的文件
+    private SessionFile current;
+    private int cursor;
+    private int nextFile;
+    private volatile boolean sentAll;
+    private volatile int filesDone;
+
+    private static final class SessionFile {
+        final int id;
+        final Path source;
+        final Path output;
+        final FileChannel channel;
+        final ReversedFileWriter writer;
+        final List<reverseTcpClient.FileSegment> segments;
+
+        SessionFile(int id, Path source, FileChannel channel, ReversedFileWriter writer, List<reverseTcpClient.FileSegment> segments) {
+            this.id = id;
+            this.source = source;
+            this.output = ClientSession.outputFor(source);
+            this.channel = channel;
+            this.writer = writer;
+            this.segments = segments;
+        }
+    }
+
+    ClientSession(reverseTcpClient client, List<Path> files, int Lmin, int Lmax) {
+        this.client = client;
+        this.files = files;
+        this.Lmin = Lmin;
+        this.Lmax = Lmax;
+    }
+
+    // 结果和源文件放在同一个目录
+    static Path outputFor(Path source) {
+        return source.resolveSibling("reversed_" + source.getFileName());
+    }
+
+    @Override
+    public reverseTcpClient.FileSegment next(SendThread sender) throws IOException {
+        while (true) {
+            if (current != null) {
+                if (cursor < current.segments.size()) {
+                    reverseTcpClient.FileSegment segment = current.segments.get(cursor++);
+                    segment.source = current.channel;
+                    segment.output = current.writer;
+                    return segment;
+                }
+                sender.sendControl(Protocol.END_FILE, current.id);
+                current.channel.close();                // 分块都已经同步写进套接字，源文件用完了
+                current = null;
+            }
+            if (nextFile == files.size()) {
+                sentAll = true;
+                return null;
+            }
+            Path source = files.get(nextFile);
+            List<reverseTcpClient.FileSegment> segments = client.splitFileData(source.toString(), Lmin, Lmax);
+            FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+            current = new SessionFile(nextFile++, source, channel, new ReversedFileWriter(outputFor(source).toString(), channel.size()), segments);
+            cursor = 0;
+            pending.put(current.id, current);
+            sender.sendControl(Protocol.BEGIN_FILE, current.id);
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return sentAll && filesDone == files.size();
+    }
+
+    @Override
+    public boolean control(byte messageType, int id, int length) throws IOException {
+        if (messageType != Protocol.END_FILE) return false;
+        SessionFile file = pending.remove(id);
+        if (file == null) throw new IOException("Unknown file id in receipt: " + id);
+        if (length != file.segments.size()) {
+            throw new IOException("Server got " + length + " segments of " + file.source + ", sent " + file.segments.size());
+        }
+        file.writer.close();
+        filesDone++;                                    // 只有接收线程写
+        System.out.println("Reversed " + file.source + " -> " + file.output);
+        return true;
+    }
+
+    // 出错中断时把还开着的源文件、输出文件关掉
+    @Override
+    public void close() throws IOException {
+        if (current != null) current.channel.close();
+        for (SessionFile file : pending.values()) {
+            file.writer.close();
         }
+        pending.clear();
     }
 }
@@ -7,11 +7,15 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
 // 并发
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class reverseTcpServer {
@@ -21,38 +25,74 @@ public class reverseTcpServer {
     public static final byte _serverToClient = 0x04;
     public static final int _headerSize = 6;                                                    // 头部字段长度
     // ——————————————————————————————————————————————————————————
-    private Selector selector;                                                                  // 用于管理多个通道的选择器
-    private final Map<SocketChannel, byte[]> containers = new ConcurrentHashMap<>();
-    private final Map<SocketChannel, Integer> numberOfSegments = new ConcurrentHashMap<>();
-    private final Map<SocketChannel, Object> channelLocks = new ConcurrentHashMap<>();
-
-    private final ExecutorService executorService;                                              // 线程池
-    private final int _workers = 10;                                                            // 工人数
+    private Selector selector;                                                                  // 主Reactor的选择器，只负责接受连接
+    private final EventLoop[] eventLoops;                                                       // 从Reactor，每个有自己的选择器
+    private int nextLoop = 0;                                                                   // 轮询分配下标
+    private final ServerConfig config;
+    private ExecutorService executorService;                                                    // 反转大分块的线程池，有界队列
+    private final ServerMetrics metrics = new ServerMetrics();                                  // 各事件循环共用的运行指标
+    private ReversalCache cache;                                                                // 反转结果缓存，没开启时为null
+    private AdmissionControl admission;                                                         // 连接数上限和全局内存预算
 
 
     // 构造方法
     public reverseTcpServer(){
-        executorService = Executors.newFixedThreadPool(_workers);
+        this(new ServerConfig());                                                               // 默认每个核一个事件循环
+    }
+
+    public reverseTcpServer(ServerConfig config){
+        this.config = config;
+        eventLoops = new EventLoop[config.workers];
     }
 
     // 主方法
     public static void main(String[] args) throws IOException {
-        reverseTcpServer server = new reverseTcpServer();
-        server.startServer(12345);  // 启动服务器，监听端口12345
+        ServerConfig config = ServerConfig.parse(args);
+        if (config == null) {
+            System.out.println(ServerConfig.USAGE);
+            return;
+        }
+        if (config.engine.equals("threads")) {
+            new ThreadedServer(config).startServer(config.port);
+            return;
+        }
+        reverseTcpServer server = new reverseTcpServer(config);
+        server.startServer(config.port);  // 启动服务器，默认监听端口12345
     }
 
     // 启动服务器
     public void startServer(int port) throws IOException {
+        AtomicInteger workerId = new AtomicInteger();
+        executorService = new ThreadPoolExecutor(config.reverseThreads, config.reverseThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.reverseQueue), r -> {
+                    Thread worker = new Thread(r, "reverse-worker-" + workerId.getAndIncrement());
+                    worker.setDaemon(true);
+                    return worker;
+                });
+        metrics.register();
+        if (config.metricsInterval > 0) metrics.startReporter(config.metricsInterval);
+        if (config.cacheSize > 0) cache = new ReversalCache(config.cacheSize, config.cacheMaxEntry, metrics);
+        admission = new AdmissionControl(config, metrics);
+        for (int i = 0; i < eventLoops.length; i++) {                   // 先把从Reactor跑起来
+            eventLoops[i] = new EventLoop(i, config, executorService, metrics, cache, admission);
+            eventLoops[i].start();
+        }
         selector = Selector.open();                                     // 创建一个Selector对象
         ServerSocketChannel serverSocket = ServerSocketChannel.open();  // 打开一个serverSocketChannel， 监听新进来的TCP连接，对每一个连接都创建一个SocketChannel（通过TCP读写网络中的数据）
         serverSocket.bind(new InetSocketAddress(port));                 // 绑定一个服务器端口
         serverSocket.configureBlocking(false);                          // 设置为非阻塞模式
-        serverSocket.register(selector, SelectionKey.OP_ACCEPT);        // 注册感兴趣的I/O事件：接受连接
+        SelectionKey acceptKey = serverSocket.register(selector, SelectionKey.OP_ACCEPT);   // 注册感兴趣的I/O事件：接受连接
 
-        System.out.println("Server is listening on port " + port);
-        // 准备工作完成
+        System.out.println("Server is listening on port " + port + " with " + eventLoops.length + " event loops");
+        // 准备工作完成，主线程只做accept
+        boolean deferred = false;                   // 连接数或内存到了上限，暂时不接受新连接
         while (true) {
-            int readyChannels = selector.select();  // 阻塞，直到至少有一个通道准备好
+            int readyChannels = selector.select(deferred ? 10 : 0);    // 暂停期间定时醒来看看能不能恢复
+            if (deferred && admission.admitsConnection()) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                deferred = false;
+                if (config.debug) System.out.println("Resumed accepting connections");
+            }
             if(readyChannels == 0) continue;        // 增强健壮性
             Iterator<SelectionKey> keys = selector.selectedKeys().iterator();   // SelectionKey对象的集合，代表了准备好进行I/O操作的通道
 
@@ -60,26 +100,29 @@ public class reverseTcpServer {
                 SelectionKey key = keys.next();
                 keys.remove();                  // 从集合中移除已经处理的键 解绑
 
-                if (!key.isValid()) continue;
-                if (key.isAcceptable()) {                                           // 处理连接事件
+                if (key.isValid() && key.isAcceptable()) {                          // 处理连接事件
+                    if (!admission.admitsConnection()) {
+                        // 新连接留在内核的积压队列里，客户端看到的是连接建立慢，而不是被拒绝
+                        key.interestOps(0);
+                        deferred = true;
+                        metrics.deferredAccepts.increment();
+                        if (config.debug) System.out.println("Deferring accepts: " + metrics.activeConnections.sum() + " connections, " + metrics.memoryInUse.get() + " bytes in use");
+                        continue;
+                    }
                     accept(key);
-                } else if (key.isReadable()) {
-                    read(key);
-                    // executorService.submit(() -> handleRead(key));                 // 处理读事件
-                } else if(key.isWritable()){
-                    write(key);
-                    // executorService.submit(() -> handleWrite(key));                // 处理写事件
                 }
             }
         }
     }
 
-    // 处理连接请求
+    // 处理连接请求：接受后轮询交给某个从Reactor，之后该连接的所有读写都在那一个线程里完成
     private void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocket = (ServerSocketChannel) key.channel();
         SocketChannel client = serverSocket.accept();   // 接受客户端链接
+        if (client == null) return;
         client.configureBlocking(false);                // 配置客户端通道为非阻塞模式
-        client.register(selector, SelectionKey.OP_READ);// 将客户端通道注册到选择器，监听读事件
+        metrics.acceptedConnections.increment();
+        metrics.activeConnections.increment();          // 接受时就计数，准入检查不用等事件循环注册完
 
 //        // 获取客户端的远程地址
 //        String clientAddress = client.getRemoteAddress().toString();
@@ -93,157 +136,314 @@ public class reverseTcpServer {
 //        }
 //        tempFolder.put(client, clientFolder);
 
-        channelLocks.put(client, new Object());         // 初始化锁对象
-        System.out.println("Accepted connection from " + client);
+        EventLoop loop = eventLoops[nextLoop];
+        nextLoop = (nextLoop + 1) % eventLoops.length;
+        loop.register(client);
+        if (config.debug) System.out.println("Accepted connection from " + client + " -> " + loop.getName());
     }
+}
 
-    // 处理反转文本请求
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();   // 获取客户端通道
-        ByteBuffer buffer = ByteBuffer.allocate(1024);  // 独立缓冲区
-        ByteBuffer headerBuffer = ByteBuffer.allocate(_headerSize);
-
-        int bytesRead = 0;
-        // 读取头部信息
-        while(headerBuffer.hasRemaining()) {
-            bytesRead = client.read(headerBuffer);
-            if (bytesRead == -1) {
-                client.close();                       // 客户端关了
-                return;
+// 从Reactor：一个线程 + 一个Selector，负责分到它名下连接的读、反转、写
+// 连接只属于一个事件循环，连接状态不需要加锁
+class EventLoop extends Thread {
+    private final Selector selector;
+    private final ServerConfig config;
+    private final ExecutorService executorService;                                              // 大分块的反转交给线程池，不占用事件循环
+    private final ServerMetrics metrics;
+    private final ReversalCache cache;
+    private final AdmissionControl admission;
+    private int paused;                                                                         // 本线程因为内存预算停读的连接数
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();    // 主Reactor交过来、还没注册的连接
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();             // 线程池做完的活，交回本线程收尾
+
+    EventLoop(int id, ServerConfig config, ExecutorService executorService, ServerMetrics metrics, ReversalCache cache,
+              AdmissionControl admission) throws IOException {
+        super("event-loop-" + id);
+        this.config = config;
+        this.executorService = executorService;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.admission = admission;
+        selector = Selector.open();
+    }
+
+    // 由accept线程调用：放进队列后唤醒选择器，由本线程自己完成注册
+    void register(SocketChannel client) {
+        pendingChannels.add(client);
+        selector.wakeup();
+    }
+
+    // 由其他线程调用：把任务交回本事件循环执行
+    void execute(Runnable task) {
+        completions.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long idleTimeout = TimeUnit.SECONDS.toNanos(config.idleTimeout);
+        long lastIdleCheck = System.nanoTime();
+        while (true) {
+            try {
+                selector.select(paused > 0 ? 10 : idleTimeout > 0 ? 1000 : 0);   // 有停读的连接时勤看预算，开了空闲超时就至少每秒醒一次
+                long start = System.nanoTime();         // 只算干活的时间，不算阻塞在select上的时间
+                registerPending();
+                runCompletions();
+                if (idleTimeout > 0 && start - lastIdleCheck >= 1_000_000_000L) {
+                    closeIdle(start, idleTimeout);
+                    lastIdleCheck = start;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        } else if(key.isWritable()){
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Error handling client: " + e.getMessage());  // 单个连接出错不影响其他连接
+                        close(key);
+                    }
+                }
+                throttle();
+                metrics.loopTime.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                System.err.println(getName() + " selector error: " + e.getMessage());
             }
         }
-        headerBuffer.flip();                          // limit -> position position -> 0
-        short messageType = headerBuffer.getShort();  // 前两个字节 type
-
-        if(messageType == _initialization){
-            int N = headerBuffer.getInt();            // 后四个字节    就是N
-            headerBuffer.clear();
+    }
 
-            System.out.println("successfully received initialization( " + client.getRemoteAddress() + " ) N: " + N);
-            numberOfSegments.put(client, N);
-            client.register(selector, SelectionKey.OP_READ);    // 注册写
+    private void registerPending() {
+        SocketChannel client;
+        while ((client = pendingChannels.poll()) != null) {
+            try {
+                client.register(selector, SelectionKey.OP_READ, new Connection(config, metrics, cache, admission));  // 监听读事件，附上该连接的状态
+            } catch (IOException e) {
+                System.err.println("Error registering client: " + e.getMessage());
+                metrics.activeConnections.decrement();
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    System.err.println("Error closing client channel: " + ex.getMessage());
+                }
+            }
+        }
+    }
 
-            // 发送agree报文
-            headerBuffer.putShort(_agreement);
-            headerBuffer.flip();
+    // 超过空闲时间没有读写进展的连接直接关掉：客户端走了没关连接，或者一直不读应答
+    // 线程池里还有活的连接不算空闲；停读的连接从停读时开始计时，停读期间看不到客户端关闭，只能靠这里回收
+    private void closeIdle(long now, long idleTimeout) {
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+            Connection connection = (Connection) key.attachment();
+            if (connection.pendingWork == 0 && now - connection.lastActive > idleTimeout) {
+                if (config.debug) System.out.println("Closing idle connection " + key.channel());
+                metrics.idleClosed.increment();
+                close(key);
+            }
+        }
+    }
 
-            while(headerBuffer.hasRemaining()){
-                client.write(headerBuffer);
+    // 全局积压超过高水位时，每轮停掉本线程积压最多的一个连接的读；到了上限，本线程所有连接都停读
+    // 停读的连接照常写应答，降到低水位以下全部恢复；客户端那边由TCP流控顶住
+    // 只在帧边界上停：读到一半的正文停下来就永远不会交出去，占着的预算也就还不回来
+    private void throttle() {
+        if (admission.aboveHigh()) {
+            boolean all = admission.exhausted();
+            SelectionKey heaviest = null;
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+                Connection connection = (Connection) key.attachment();
+                if (connection.paused || connection.inputClosed || !connection.decoder.atFrameBoundary()) continue;
+                if (all) {
+                    pause(key, connection);
+                } else if (connection.memoryInUse > 0
+                        && (heaviest == null || connection.memoryInUse > ((Connection) heaviest.attachment()).memoryInUse)) {
+                    heaviest = key;
+                }
             }
-            headerBuffer.clear();
-        } else if (messageType == _clientToServer){
-            int segmentSize = headerBuffer.getInt();
-            headerBuffer.clear();
-
-            byte[] messageContent = new byte[segmentSize];
-            containers.put(client, messageContent);
-            System.out.println("Received from client: " + client.getRemoteAddress() + " | segmentSize: " + segmentSize + " Byte.");
-
-            bytesRead = 0;                                  // bytesRead是每轮开始前已经读到的长度
-            while(bytesRead < messageContent.length){
-                // 调整buffer的limit 不能从channel里面拿出本轮不该拿的数据
-                int leftBytesToRead = Math.min(buffer.remaining(), messageContent.length - bytesRead);  // 想要读到的长度
-                buffer.limit(leftBytesToRead);
-                int bytesReadLength = client.read(buffer);    // 实际读到的长度
-                if(bytesReadLength == 0) continue;
-                buffer.flip();
-                buffer.get(messageContent, bytesRead, bytesReadLength);
-                bytesRead += bytesReadLength;
-                buffer.clear();
+            if (heaviest != null) pause(heaviest, (Connection) heaviest.attachment());
+        } else if (paused > 0 && admission.belowLow()) {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+                Connection connection = (Connection) key.attachment();
+                if (!connection.paused) continue;
+                connection.paused = false;
+                connection.lastActive = now;
+                paused--;
+                metrics.pausedConnections.decrement();
+                updateInterest(key, connection);
             }
-            String receivedString = new String(messageContent);
-            System.out.println("Received String: " + receivedString);
-            String reversedString = new StringBuilder(receivedString).reverse().toString(); // 反转字符串
-            byte[] reversedData = reversedString.getBytes();                                // 将反转后的字符串转换为字节数组
-            containers.put(client, reversedData);
+        }
+    }
 
-            int n = numberOfSegments.get(client);
-            numberOfSegments.put(client, n - 1);
+    private void pause(SelectionKey key, Connection connection) {
+        connection.paused = true;
+        connection.lastActive = System.nanoTime();       // 空闲超时从停读时算起
+        paused++;
+        metrics.pausedConnections.increment();
+        metrics.readPauses.increment();
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        if (config.debug) System.out.println("Paused reading " + key.channel() + ": " + connection.memoryInUse + " bytes queued");
+    }
 
-            client.register(selector, SelectionKey.OP_WRITE);       // 注册写
-        } else{
-            System.out.println("意料之外");
+    private void runCompletions() {
+        Runnable task;
+        while ((task = completions.poll()) != null) {
+            task.run();
         }
-
     }
 
-    private void write(SelectionKey key) throws IOException{
-        SocketChannel client = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);  // 独立缓冲区
-        byte[] messageContent = containers.get(client);
+    // 处理反转文本请求：只消费通道里当前可读的数据，不够一帧就回到select，进度保存在key的附件里
+    // 在途应答数没到窗口上限就一直读下去（v1窗口为1，即停等）
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();   // 获取客户端通道
+        Connection connection = (Connection) key.attachment();
+        FrameDecoder decoder = connection.decoder;
+        connection.lastActive = System.nanoTime();
+
+        while (connection.outbound.size() < connection.window && connection.pendingWork == 0 && !connection.paused) {
+            int status = decoder.decode(client, Math.min(config.maxConnectionMemory - connection.memoryInUse, admission.available()));
+            if (status == FrameDecoder.EOF) {
+                connection.inputClosed = true;        // 客户端不再发了，把剩下的应答发完再关
+                break;
+            }
+            if (status == FrameDecoder.INCOMPLETE) break;   // 数据还没到齐，等下次可读
 
-        sendMessage(buffer, client, _serverToClient, messageContent);
-        int n = numberOfSegments.get(client);
+            handleFrame(key, connection);
+            if (!key.isValid()) return;
+            if (admission.aboveHigh()) throttle();  // 预算紧张时每收一帧就看一次，轮到本连接停读就跳出
+        }
+        write(key);                                   // 顺手把应答写出去，写不完再等OP_WRITE
+    }
 
-        if(n != 0){
-            client.register(selector, SelectionKey.OP_READ);
+    private void handleFrame(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        FrameDecoder decoder = connection.decoder;
+        byte messageType = decoder.messageType;
+        if(messageType == reverseTcpServer._initialization){
+            ByteBuffer agreement = connection.agree(config);
+            if (config.debug) System.out.println("successfully received initialization( " + client.getRemoteAddress() + " ) N: " + connection.numberOfSegments
+                    + " version: " + connection.version + " window: " + connection.window);
+            connection.enqueue(new BufferedReply(agreement));
+        } else if (messageType == Protocol.BEGIN_FILE) {
+            connection.beginFile();
+            if (config.debug) System.out.println("Begin file " + connection.fileId + " from " + client.getRemoteAddress());
+        } else if (messageType == Protocol.END_FILE) {
+            // 读循环要等线程池里的分块都回来才会往下读，这时这个文件的应答都已经在队列里了，回执排在它们后面
+            if (config.debug) System.out.println("End file " + connection.fileId + " from " + client.getRemoteAddress() + ": " + connection.fileSegments + " segments");
+            connection.enqueue(new BufferedReply(connection.endFile()));
+        } else if (messageType == Protocol.BATCH) {
+            // 批量帧里都是小分块，就地反转
+            BatchReply reply = connection.takeBatch();
+            if (config.debug) System.out.println("Received batch from client: " + client.getRemoteAddress() + " | segments: " + reply.segments() + " | " + reply.segmentBytes + " Byte.");
+            long receivedAt = System.nanoTime();
+            reply.reverse();
+            connection.enqueue(reply, receivedAt);
+        } else if (messageType == reverseTcpServer._clientToServer && decoder.spool != null){
+            // 大分块已经落盘，从尾部分段读出、反转、发回，内存占用只有一个读写块
+            if (config.debug) System.out.println("Received from client: " + client.getRemoteAddress() + " | segmentSize: " + decoder.length + " Byte (spooled).");
+            connection.enqueue(connection.takeSpooled(), System.nanoTime());
+        } else if (messageType == reverseTcpServer._clientToServer){
+            SegmentReply reply = connection.takeSegment();
+            if (config.debug) System.out.println("Received from client: " + client.getRemoteAddress() + " | segmentSize: " + reply.segmentSize + " Byte.");
+            long receivedAt = System.nanoTime();
+            if (reply.segmentSize >= config.offloadThreshold && offload(key, connection, reply, receivedAt)) return;
+            reply.reverse();                                    // 小分块就地反转，省掉线程切换
+            connection.enqueue(reply, receivedAt);
         } else{
-            containers.remove(client);
-            numberOfSegments.remove(client);
-            int bytesRead;
-            // 等客户端关闭，我的服务器也要关，——————————————优化
-            while((bytesRead = client.read(buffer)) != -1){buffer.clear();}
-            client.close();
-            System.out.println("Client closed");
+            System.out.println("意料之外: " + messageType);
+            close(key);                               // 帧边界已经错乱，无法继续
         }
+
     }
 
-    private void handleRead(SelectionKey key){
-        SocketChannel client = (SocketChannel) key.channel();
-        Object lock = channelLocks.get(client);
-        synchronized (lock) {
+    // 大分块交给线程池反转，做完回到本线程入队并关注写；期间该连接暂停读（背压）
+    // 线程池队列满了返回false，由调用方就地反转
+    private boolean offload(SelectionKey key, Connection connection, SegmentReply reply, long receivedAt) {
+        long memory = reply.memory();                       // 反转时可能换成压缩后的缓冲，按交出去时的大小记账
+        Runnable done = () -> {
+            connection.pendingWork--;
+            connection.charge(-memory);
+            if (!key.isValid()) {                           // 等的过程中连接已经关了
+                reply.release();
+                return;
+            }
+            connection.enqueue(reply, receivedAt);
             try {
-                read(key);
+                write(key);
             } catch (IOException e) {
-                key.cancel();
-                try {
-                    key.channel().close();
-                } catch (IOException ex) {
-                    System.err.println("Error closing client channel: " + ex.getMessage());
-                }
+                System.err.println("Error handling client: " + e.getMessage());
+                close(key);
             }
+        };
+        try {
+            executorService.execute(() -> {
+                reply.reverse();
+                execute(done);
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.offloadRejected.increment();
+            return false;
         }
+        metrics.offloadedSegments.increment();
+        connection.pendingWork++;
+        connection.charge(memory);
+        return true;
     }
 
-    private void handleWrite(SelectionKey key) {
+    // 非阻塞地写出应答队列，写不动就留着等下次OP_WRITE，最后按连接状态调整关注的事件
+    private void write(SelectionKey key) throws IOException{
         SocketChannel client = (SocketChannel) key.channel();
-        Object lock = channelLocks.get(client);
-        synchronized (lock) {
-            try {
-                write(key);
-            } catch (IOException e) {
-                System.err.println("Error writing to client: " + e.getMessage());
-                key.cancel();
-                try {
-                    key.channel().close();
-                } catch (IOException ex) {
-                    System.err.println("Error closing client channel: " + ex.getMessage());
-                }
-            }
+        Connection connection = (Connection) key.attachment();
+        connection.lastActive = System.nanoTime();
+
+        Outbound reply;
+        while((reply = connection.outbound.peek()) != null){
+            if (!reply.writeTo(client)) break;    // 操作系统内核中的套接字发送缓冲区满了
+            connection.outbound.poll();
+            connection.sent(reply);
         }
 
+        if (connection.inputClosed && connection.outbound.isEmpty() && connection.pendingWork == 0) {
+            close(key);                           // 客户端已关闭输出，应答也发完了
+            if (config.debug) System.out.println("Client closed | " + BufferPool.shared().stats());
+            return;
+        }
+        updateInterest(key, connection);
     }
 
-    private void sendMessage(ByteBuffer buffer, SocketChannel client, byte messageType, byte[] messageContent) throws IOException{
-        // 只负责发送普通报文
-        buffer.putShort(messageType);           // short是2字节
-        buffer.putInt(messageContent.length);   // int是四字节
-        buffer.flip();
-        while(buffer.hasRemaining()){           // 检查的是position和limit之间的距离
-            client.write(buffer);
+    // 按连接状态调整关注的事件：窗口满了、有活在线程池里、被停读时都不读
+    private void updateInterest(SelectionKey key, Connection connection) {
+        int ops = 0;
+        if (!connection.inputClosed && connection.outbound.size() < connection.window && connection.pendingWork == 0 && !connection.paused) {
+            ops |= SelectionKey.OP_READ;
         }
-        buffer.clear();
-        int bytesWrittern = 0;
-        while(bytesWrittern < messageContent.length){
-            int remaining = messageContent.length - bytesWrittern;
-            int writeSize = Math.min(remaining, buffer.remaining());    // buffer的剩余写入量，容器中还有多少数据没写进去
-            buffer.put(messageContent, bytesWrittern, writeSize);       // 从messageContent的offset开始写，写进去length个
-            bytesWrittern += writeSize;
-            buffer.flip();
-            while(buffer.hasRemaining()){           // 检查的是position和limit之间的距离
-                client.write(buffer);               // 防止操作系统内核中的套接字发送缓冲区满了
-            }
-            buffer.clear();
+        if (!connection.outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    private void close(SelectionKey key) {
+        if (key.channel().isOpen()) metrics.activeConnections.decrement();
+        key.cancel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.paused) {
+            connection.paused = false;
+            paused--;
+            metrics.pausedConnections.decrement();
+        }
+        connection.release();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("Error closing client channel: " + e.getMessage());
         }
     }
 }